@@ -0,0 +1,53 @@
+package link.jort;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import blue.endless.jankson.JsonElement;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Serves internal statistics as JSON to requests that arrive on the admin connector. Everything
+ * else is passed through to the delegate.
+ */
+public class AdminHandler extends HandlerWrapper {
+
+	private final Connector connector;
+
+	public AdminHandler(Connector connector, Handler delegate) {
+		this.connector = connector;
+		setHandler(delegate);
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest req, HttpServletResponse res) throws IOException, ServletException {
+		if (baseRequest.getHttpChannel().getConnector() != connector) {
+			super.handle(target, baseRequest, req, res);
+			return;
+		}
+		baseRequest.setHandled(true);
+		JsonElement body = switch (target) {
+			case "/admission" -> JortLink.admission.stats();
+			case "/traces" -> JortLink.tracer.stats();
+			case "/trending" -> JortLink.trending.stats();
+			case "/connections" -> JortLink.connStats.stats(getServer());
+			default -> null;
+		};
+		if (body == null) {
+			res.sendError(404);
+			return;
+		}
+		res.setHeader("Cache-Control", "no-store");
+		res.setContentType("application/json; charset=utf-8");
+		res.getOutputStream().write(body.toJson(false, true).getBytes(StandardCharsets.UTF_8));
+		res.getOutputStream().close();
+	}
+
+}
@@ -0,0 +1,182 @@
+package link.jort;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+
+/**
+ * Bounds how many cache misses may be fetched at once, and how many may queue up waiting for a
+ * slot. The in-flight limit is adjusted AIMD-style: it creeps up while fetches complete faster than
+ * the target latency with the limit saturated, and is cut back when they come in slower.
+ * <p>
+ * Tasks that wait in the queue for longer than the maximum queue wait are shed too, with their
+ * futures failing with a {@link RejectedExecutionException}, so nobody is left waiting past the
+ * point their request would have timed out anyway.
+ */
+public final class AdmissionController {
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final int maxQueued;
+	private final long targetNanos;
+	private final int retryAfter;
+	private final long maxQueueNanos;
+
+	// a thread of our own, so expiry can't be held up by the prune walk or anything else on the shared scheduler
+	private final ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+			.setNameFormat("jort.link admission expiry")
+			.setDaemon(true)
+			.build());
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+			.setNameFormat("jort.link fetch #%d")
+			.setDaemon(true)
+			.build());
+
+	private record Queued(Runnable task, CompletableFuture<?> future, long since) {}
+
+	private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+
+	private double limit;
+	private int inFlight;
+	private long lastDecrease;
+	private long shed;
+
+	public AdmissionController(int minLimit, int maxLimit, int maxQueued, long targetMillis, int retryAfter, long maxQueueMillis) {
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.maxQueued = maxQueued;
+		this.targetNanos = targetMillis*1_000_000L;
+		this.retryAfter = retryAfter;
+		this.maxQueueNanos = maxQueueMillis*1_000_000L;
+		expirer.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.SECONDS);
+		this.limit = maxLimit;
+	}
+
+	public static AdmissionController fromConfig(JsonObject obj) {
+		if (obj == null) obj = new JsonObject();
+		int min = obj.getInt("minInFlight", 4);
+		int max = Math.max(min, obj.getInt("maxInFlight", 64));
+		return new AdmissionController(min, max, obj.getInt("maxQueued", 256),
+				obj.getLong("targetLatency", 2000), obj.getInt("retryAfter", 10),
+				// well under Jetty's default async timeout of 30 seconds, leaving time for the fetch itself
+				obj.getLong("maxQueueWait", 10000));
+	}
+
+	/**
+	 * @return how long, in milliseconds, a task may wait in the queue before being shed
+	 */
+	public long maxQueueWait() {
+		return maxQueueNanos/1_000_000L;
+	}
+
+	/**
+	 * @return the number of seconds shed clients should be told to wait before retrying
+	 */
+	public int retryAfter() {
+		return retryAfter;
+	}
+
+	/**
+	 * Run the given task once a slot is available.
+	 * @return a future for the task's result, or {@code null} if the task was shed
+	 */
+	public <T> CompletableFuture<T> submit(Supplier<T> task) {
+		var future = new CompletableFuture<T>();
+		Runnable r = () -> {
+			long start = System.nanoTime();
+			try {
+				future.complete(task.get());
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			} finally {
+				release(System.nanoTime()-start);
+			}
+		};
+		synchronized (this) {
+			if (inFlight < (int)limit) {
+				inFlight++;
+			} else if (queue.size() < maxQueued) {
+				queue.add(new Queued(r, future, System.nanoTime()));
+				return future;
+			} else {
+				shed++;
+				return null;
+			}
+		}
+		executor.execute(r);
+		return future;
+	}
+
+	private void release(long nanos) {
+		Runnable next = null;
+		var expired = new ArrayList<Queued>();
+		synchronized (this) {
+			long now = System.nanoTime();
+			pollExpired(now, expired);
+			if (nanos > targetNanos) {
+				// only back off once per target interval, so a burst of slow fetches doesn't collapse the limit
+				if (now-lastDecrease > targetNanos) {
+					limit = Math.max(minLimit, limit*0.9);
+					lastDecrease = now;
+				}
+			} else if (inFlight >= (int)limit) {
+				limit = Math.min(maxLimit, limit+(1/limit));
+			}
+			if (inFlight <= (int)limit && !queue.isEmpty()) {
+				next = queue.poll().task;
+			} else {
+				inFlight--;
+			}
+		}
+		shedAll(expired);
+		if (next != null) executor.execute(next);
+	}
+
+	/**
+	 * Shed queued tasks that have waited too long. Called every second, as nothing else might
+	 * release a slot while every in-flight fetch is stuck.
+	 */
+	private void expire() {
+		var expired = new ArrayList<Queued>();
+		synchronized (this) {
+			pollExpired(System.nanoTime(), expired);
+		}
+		shedAll(expired);
+	}
+
+	private void pollExpired(long now, ArrayList<Queued> out) {
+		// the queue is in arrival order, so everything expired is at the head
+		while (!queue.isEmpty() && now-queue.peek().since > maxQueueNanos) {
+			out.add(queue.poll());
+			shed++;
+		}
+	}
+
+	private static void shedAll(ArrayList<Queued> expired) {
+		// completed outside the lock, as completion runs the waiters' callbacks
+		for (var q : expired) {
+			q.future.completeExceptionally(new RejectedExecutionException("Waited too long for a fetch slot"));
+		}
+	}
+
+	public synchronized JsonObject stats() {
+		var obj = new JsonObject();
+		obj.put("limit", new JsonPrimitive((int)limit));
+		obj.put("inFlight", new JsonPrimitive(inFlight));
+		obj.put("queued", new JsonPrimitive(queue.size()));
+		obj.put("shed", new JsonPrimitive(shed));
+		return obj;
+	}
+
+}
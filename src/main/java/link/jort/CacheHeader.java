@@ -0,0 +1,165 @@
+package link.jort;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32C;
+
+import javax.annotation.Nullable;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.MoreFiles;
+
+/**
+ * The fixed-size header at the start of every cache file. All fields live at fixed offsets, so the
+ * whole thing can be read with a single positioned read of {@link #SIZE} bytes:
+ * <pre>
+ *   0 int    magic ("JRTL")
+ *   4 short  version
+ *   6 short  status
+ *   8 int    body offset
+ *  12 long   body length, or -1 if the body is still being written
+ *  20 long   fetch time, in epoch millis
+ *  28 int    CRC32C of the body
+ *  32 int    CRC32C of this header, computed with this field zeroed
+ *  36 ...    reserved
+ *  40 str    content type (256 bytes)
+ * 296 str    upstream content encoding (32 bytes)
+ * 328 str    upstream ETag (128 bytes)
+ * 456 str    upstream Last-Modified (40 bytes)
+ * 496 ...    reserved
+ * </pre>
+ * Strings are stored as an unsigned short length followed by UTF-8, in a slot of fixed size.
+ * A content type that doesn't fit its slot is truncated, as every file needs one; other strings that
+ * don't fit are dropped, as a truncated ETag or date is worse than none.
+ * <p>
+ * Files written before this header existed start with a {@link DataInputStream#readUTF modified UTF-8}
+ * content type followed by a short status; those are still understood by {@link #read}, with a
+ * {@code null} body checksum.
+ */
+public record CacheHeader(int status, long bodyOffset, long bodyLength, long fetchedAt, String contentType,
+		@Nullable String contentEncoding, @Nullable String etag, @Nullable String lastModified, @Nullable Integer bodyChecksum) {
+
+	public static final int MAGIC = 0x4A52544C;
+	public static final int VERSION = 2;
+	public static final int SIZE = 512;
+
+	private static final int CHECKSUM_OFFSET = 32;
+	private static final int CONTENT_TYPE_SLOT = 40;
+	private static final int CONTENT_ENCODING_SLOT = 296;
+	private static final int ETAG_SLOT = 328;
+	private static final int LAST_MODIFIED_SLOT = 456;
+
+	public CacheHeader withBody(long bodyLength, int bodyChecksum) {
+		return new CacheHeader(status, bodyOffset, bodyLength, fetchedAt, contentType, contentEncoding, etag, lastModified, bodyChecksum);
+	}
+
+	public ByteBuffer encode() {
+		var buf = ByteBuffer.allocate(SIZE);
+		buf.putInt(MAGIC);
+		buf.putShort((short)VERSION);
+		buf.putShort((short)status);
+		buf.putInt((int)bodyOffset);
+		buf.putLong(bodyLength);
+		buf.putLong(fetchedAt);
+		buf.putInt(bodyChecksum == null ? 0 : bodyChecksum);
+		putString(buf, CONTENT_TYPE_SLOT, CONTENT_ENCODING_SLOT, truncate(contentType, CONTENT_ENCODING_SLOT-CONTENT_TYPE_SLOT-2));
+		putString(buf, CONTENT_ENCODING_SLOT, ETAG_SLOT, contentEncoding);
+		putString(buf, ETAG_SLOT, LAST_MODIFIED_SLOT, etag);
+		putString(buf, LAST_MODIFIED_SLOT, LAST_MODIFIED_SLOT+40, lastModified);
+		buf.putInt(CHECKSUM_OFFSET, checksum(buf));
+		return buf.clear();
+	}
+
+	/**
+	 * Read the header of the given cache file. Only the header is read; the body is checked against
+	 * {@link #bodyChecksum} as it's served, rather than read twice.
+	 * @return the header, or {@code null} if the file is corrupt or truncated
+	 */
+	public static @Nullable CacheHeader read(Path file) throws IOException {
+		var buf = ByteBuffer.allocate(SIZE);
+		try (var ch = FileChannel.open(file)) {
+			long size = ch.size();
+			while (buf.hasRemaining() && ch.read(buf, buf.position()) != -1) {}
+			buf.flip();
+			if (buf.remaining() < 4 || buf.getInt(0) != MAGIC) {
+				return readLegacy(file, buf, size);
+			}
+			if (buf.remaining() < SIZE || buf.getShort(4) != VERSION) return null;
+			int sum = buf.getInt(CHECKSUM_OFFSET);
+			buf.putInt(CHECKSUM_OFFSET, 0);
+			if (checksum(buf) != sum) return null;
+			var hdr = new CacheHeader(buf.getShort(6) & 0xFFFF, buf.getInt(8), buf.getLong(12), buf.getLong(20),
+					getString(buf, CONTENT_TYPE_SLOT), getString(buf, CONTENT_ENCODING_SLOT),
+					getString(buf, ETAG_SLOT), getString(buf, LAST_MODIFIED_SLOT), buf.getInt(28));
+			if (hdr.contentType == null || hdr.bodyOffset+hdr.bodyLength != size) return null;
+			return hdr;
+		}
+	}
+
+	private static @Nullable CacheHeader readLegacy(Path file, ByteBuffer buf, long size) throws IOException {
+		String type;
+		int status;
+		long ofs;
+		if (buf.remaining() < 4) return null;
+		if ((buf.getShort(0) & 0xFFFF)+4 <= buf.remaining()) {
+			var in = new CountingInputStream(new ByteArrayInputStream(buf.array(), 0, buf.remaining()));
+			var dis = new DataInputStream(in);
+			type = dis.readUTF();
+			status = dis.readUnsignedShort();
+			ofs = in.getCount();
+		} else {
+			// the content type didn't fit in what we read; very unlikely, but legal
+			try (var in = new CountingInputStream(MoreFiles.asByteSource(file).openStream())) {
+				var dis = new DataInputStream(in);
+				type = dis.readUTF();
+				status = dis.readUnsignedShort();
+				ofs = in.getCount();
+			}
+		}
+		long fetchedAt = Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime().toMillis();
+		return new CacheHeader(status, ofs, size-ofs, fetchedAt, type, null, null, null, null);
+	}
+
+	private static int checksum(ByteBuffer buf) {
+		var crc = new CRC32C();
+		crc.update(buf.array(), 0, SIZE);
+		return (int)crc.getValue();
+	}
+
+	private static void putString(ByteBuffer buf, int start, int end, @Nullable String str) {
+		if (str == null) return;
+		byte[] bys = str.getBytes(StandardCharsets.UTF_8);
+		if (bys.length > end-start-2) return;
+		buf.putShort(start, (short)bys.length);
+		buf.put(start+2, bys);
+	}
+
+	/**
+	 * Shorten a content type to at most {@code max} bytes of UTF-8, dropping whole parameters where
+	 * possible.
+	 */
+	private static String truncate(String type, int max) {
+		byte[] bys = type.getBytes(StandardCharsets.UTF_8);
+		if (bys.length <= max) return type;
+		int end = max;
+		// don't split a multibyte character
+		while (end > 0 && (bys[end] & 0xC0) == 0x80) end--;
+		String cut = new String(bys, 0, end, StandardCharsets.UTF_8);
+		int semi = cut.lastIndexOf(';');
+		return semi > 0 ? cut.substring(0, semi).trim() : cut;
+	}
+
+	private static @Nullable String getString(ByteBuffer buf, int start) {
+		int len = buf.getShort(start) & 0xFFFF;
+		if (len == 0) return null;
+		return new String(buf.array(), start+2, len, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,76 @@
+package link.jort;
+
+import java.net.http.HttpClient;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.Server;
+
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+
+/**
+ * Counts requests by protocol version in both directions, and collects the connection statistics
+ * of each connector, to show how well connections are being reused. The JDK client doesn't expose
+ * its pool, so for upstream fetches only the negotiated versions and timeouts are known.
+ */
+public final class ConnectionStats {
+
+	private final Map<HttpVersion, LongAdder> requests = new EnumMap<>(HttpVersion.class);
+	private final Map<HttpClient.Version, LongAdder> upstream = new EnumMap<>(HttpClient.Version.class);
+	private final LongAdder upstreamTimeouts = new LongAdder();
+
+	public ConnectionStats() {
+		// filled up front so the maps are never written to again
+		for (var v : HttpVersion.values()) requests.put(v, new LongAdder());
+		for (var v : HttpClient.Version.values()) upstream.put(v, new LongAdder());
+	}
+
+	public void request(HttpVersion version) {
+		if (version != null) requests.get(version).increment();
+	}
+
+	public void upstreamResponse(HttpClient.Version version) {
+		upstream.get(version).increment();
+	}
+
+	public void upstreamTimeout() {
+		upstreamTimeouts.increment();
+	}
+
+	public JsonObject stats(Server server) {
+		var obj = new JsonObject();
+		var conns = new JsonObject();
+		for (Connector c : server.getConnectors()) {
+			var cs = c.getBean(ConnectionStatistics.class);
+			if (cs == null) continue;
+			var o = new JsonObject();
+			o.put("open", new JsonPrimitive(cs.getConnections()));
+			o.put("maxOpen", new JsonPrimitive(cs.getConnectionsMax()));
+			o.put("total", new JsonPrimitive(cs.getConnectionsTotal()));
+			o.put("meanDurationMillis", new JsonPrimitive(Math.round(cs.getConnectionDurationMean())));
+			o.put("messagesIn", new JsonPrimitive(cs.getReceivedMessages()));
+			o.put("messagesPerConnection", new JsonPrimitive(cs.getConnectionsTotal() == 0 ? 0
+					: (double)cs.getReceivedMessages()/cs.getConnectionsTotal()));
+			o.put("bytesIn", new JsonPrimitive(cs.getReceivedBytes()));
+			o.put("bytesOut", new JsonPrimitive(cs.getSentBytes()));
+			conns.put(c.getName(), o);
+		}
+		obj.put("connectors", conns);
+		var req = new JsonObject();
+		requests.forEach((v, n) -> {
+			if (n.sum() > 0) req.put(v.asString(), new JsonPrimitive(n.sum()));
+		});
+		obj.put("requests", req);
+		var up = new JsonObject();
+		upstream.forEach((v, n) -> up.put(v.name(), new JsonPrimitive(n.sum())));
+		up.put("timeouts", new JsonPrimitive(upstreamTimeouts.sum()));
+		obj.put("upstream", up);
+		return obj;
+	}
+
+}
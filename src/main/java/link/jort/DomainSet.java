@@ -0,0 +1,173 @@
+package link.jort;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Splitter;
+
+/**
+ * An immutable set of domains, matched by suffix: a set containing {@code github.com} matches
+ * {@code github.com}, {@code gist.github.com} and {@code www.gist.github.com}, but not
+ * {@code notgithub.com}.
+ * <p>
+ * Domains are stored as a trie of reversed labels, flattened into arrays with each node's children
+ * stored contiguously and sorted, so lookups are a binary search per label and don't allocate.
+ */
+public final class DomainSet {
+
+	public static final DomainSet EMPTY = of(List.of());
+
+	private static final Splitter WHITESPACE_SPLITTER = Splitter.on(CharMatcher.whitespace()).omitEmptyStrings();
+	private static final Pattern ADDRESS_PATTERN = Pattern.compile("^[0-9.:]+$");
+
+	private final String[] labels;
+	private final int[] firstChild;
+	private final int[] childCount;
+	private final BitSet terminal;
+	private final int size;
+
+	private DomainSet(String[] labels, int[] firstChild, int[] childCount, BitSet terminal) {
+		this.labels = labels;
+		this.firstChild = firstChild;
+		this.childCount = childCount;
+		this.terminal = terminal;
+		this.size = terminal.cardinality();
+	}
+
+	private static final class Builder {
+		final TreeMap<String, Builder> children = new TreeMap<>();
+		boolean terminal;
+	}
+
+	public static DomainSet of(Collection<String> domains) {
+		var root = new Builder();
+		var interned = new HashMap<String, String>();
+		for (var d : domains) {
+			d = Ascii.toLowerCase(d.trim());
+			if (d.startsWith("*.")) d = d.substring(2);
+			d = CharMatcher.is('.').trimFrom(d);
+			if (d.isEmpty()) continue;
+			var node = root;
+			int end = d.length();
+			while (end > 0 && !node.terminal) {
+				int start = d.lastIndexOf('.', end-1)+1;
+				var label = interned.computeIfAbsent(d.substring(start, end), s -> s);
+				node = node.children.computeIfAbsent(label, k -> new Builder());
+				end = start-1;
+			}
+			if (!node.terminal) {
+				node.terminal = true;
+				// anything more specific is already covered by this entry
+				node.children.clear();
+			}
+		}
+		// breadth-first, so each node's children end up contiguous
+		var nodes = new ArrayList<Builder>();
+		var nodeLabels = new ArrayList<String>();
+		var queue = new ArrayDeque<Builder>();
+		nodes.add(root);
+		nodeLabels.add("");
+		queue.add(root);
+		Map<Builder, Integer> firstChildOf = new HashMap<>();
+		while (!queue.isEmpty()) {
+			var n = queue.poll();
+			firstChildOf.put(n, nodes.size());
+			for (var en : n.children.entrySet()) {
+				nodes.add(en.getValue());
+				nodeLabels.add(en.getKey());
+				queue.add(en.getValue());
+			}
+		}
+		int count = nodes.size();
+		var firstChild = new int[count];
+		var childCount = new int[count];
+		var terminal = new BitSet(count);
+		for (int i = 0; i < count; i++) {
+			var n = nodes.get(i);
+			firstChild[i] = firstChildOf.get(n);
+			childCount[i] = n.children.size();
+			if (n.terminal) terminal.set(i);
+		}
+		return new DomainSet(nodeLabels.toArray(new String[0]), firstChild, childCount, terminal);
+	}
+
+	/**
+	 * Load domains from a file with one domain per line. Comments starting with {@code #} are
+	 * ignored, as are leading addresses, so hosts-style blocklists can be used as-is.
+	 */
+	public static List<String> readList(Path file) throws IOException {
+		var out = new ArrayList<String>();
+		for (var line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			int hash = line.indexOf('#');
+			if (hash != -1) line = line.substring(0, hash);
+			for (var tok : WHITESPACE_SPLITTER.split(line)) {
+				if (ADDRESS_PATTERN.matcher(tok).matches()) continue;
+				out.add(tok);
+			}
+		}
+		return out;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return {@code true} if the given host is, or is a subdomain of, a domain in this set
+	 */
+	public boolean matches(String host) {
+		int node = 0;
+		int end = host.length();
+		if (end > 0 && host.charAt(end-1) == '.') end--;
+		while (end > 0) {
+			int start = host.lastIndexOf('.', end-1)+1;
+			node = findChild(node, host, start, end);
+			if (node == -1) return false;
+			if (terminal.get(node)) return true;
+			end = start-1;
+		}
+		return false;
+	}
+
+	private int findChild(int node, String host, int start, int end) {
+		int lo = firstChild[node];
+		int hi = lo+childCount[node]-1;
+		while (lo <= hi) {
+			int mid = (lo+hi) >>> 1;
+			int c = compare(labels[mid], host, start, end);
+			if (c < 0) {
+				lo = mid+1;
+			} else if (c > 0) {
+				hi = mid-1;
+			} else {
+				return mid;
+			}
+		}
+		return -1;
+	}
+
+	private static int compare(String label, String host, int start, int end) {
+		int len = end-start;
+		int n = Math.min(label.length(), len);
+		for (int i = 0; i < n; i++) {
+			char a = label.charAt(i);
+			char b = Ascii.toLowerCase(host.charAt(start+i));
+			if (a != b) return a-b;
+		}
+		return label.length()-len;
+	}
+
+}
@@ -0,0 +1,261 @@
+package link.jort;
+
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.metadata.IIOMetadataNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+
+import blue.endless.jankson.JsonObject;
+
+/**
+ * Shrinks proxied images down to what a preview card needs, once, when they're fetched. Images are
+ * decoded subsampled when they're much larger than the target, scaled down, and re-encoded as JPEG,
+ * or as PNG if they're actually transparent. The result is only used if it comes out smaller.
+ * Re-encoding drops metadata, so a JPEG's EXIF orientation is applied to the pixels first.
+ * <p>
+ * GIFs are left alone as they may be animated, as are formats the JDK can't decode.
+ * <p>
+ * Buffering and decoding are expensive in memory, so only a few images are worked on at once.
+ * Callers take a turn with {@link #tryAcquire} before buffering anything; fetches that can't get one
+ * store their image as it came.
+ */
+public final class ImageResizer {
+	private static final Logger log = LoggerFactory.getLogger(ImageResizer.class);
+
+	private static final Set<String> TYPES = ImmutableSet.of("image/png", "image/jpeg", "image/pjpeg", "image/bmp");
+
+	record Result(byte[] data, String contentType) {}
+
+	private final boolean enabled;
+	private final int maxDimension;
+	private final float quality;
+	private final long maxPixels;
+	private final Semaphore decodes;
+
+	public ImageResizer(boolean enabled, int maxDimension, float quality, long maxPixels, int maxConcurrent) {
+		this.enabled = enabled;
+		this.maxDimension = maxDimension;
+		this.quality = quality;
+		this.maxPixels = maxPixels;
+		this.decodes = new Semaphore(maxConcurrent);
+		if (enabled) {
+			// everything we decode is already in memory; don't spill it to temp files
+			ImageIO.setUseCache(false);
+		}
+	}
+
+	public static ImageResizer fromConfig(JsonObject obj) {
+		if (obj == null) obj = new JsonObject();
+		return new ImageResizer(obj.getBoolean("enabled", false), Math.max(16, obj.getInt("maxDimension", 1024)),
+				(float)obj.getDouble("quality", 0.8), obj.getLong("maxPixels", 50_000_000),
+				Math.max(1, obj.getInt("maxConcurrent", 1)));
+	}
+
+	/**
+	 * @param baseType a content type without parameters
+	 * @return {@code true} if images of this type should be passed to {@link #shrink}
+	 */
+	public boolean handles(String baseType) {
+		return enabled && TYPES.contains(baseType);
+	}
+
+	/**
+	 * Take a turn at buffering and shrinking an image, without waiting for one.
+	 * @return {@code true} if the caller may go ahead, and must then call {@link #release}
+	 */
+	public boolean tryAcquire() {
+		return decodes.tryAcquire();
+	}
+
+	public void release() {
+		decodes.release();
+	}
+
+	/**
+	 * Must only be called while holding a turn from {@link #tryAcquire}.
+	 * @return the shrunk image, or {@code null} if it couldn't be decoded or shrinking didn't help
+	 */
+	public Result shrink(byte[] data, String baseType) {
+		try (var iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+			var readers = ImageIO.getImageReaders(iis);
+			if (!readers.hasNext()) return null;
+			var reader = readers.next();
+			BufferedImage img;
+			int w, h, orientation;
+			try {
+				reader.setInput(iis, true, true);
+				w = reader.getWidth(0);
+				h = reader.getHeight(0);
+				// checked before decoding, as a tiny file can claim an enormous canvas
+				if ((long)w*h > maxPixels) return null;
+				int longest = Math.max(w, h);
+				// re-encoding a JPEG that's already small enough only loses quality
+				if (longest <= maxDimension && !"image/png".equals(baseType) && !"image/bmp".equals(baseType)) return null;
+				if (longest > maxDimension) {
+					double scale = maxDimension/(double)longest;
+					w = Math.max(1, (int)Math.round(w*scale));
+					h = Math.max(1, (int)Math.round(h*scale));
+				}
+				var param = reader.getDefaultReadParam();
+				// decode at no more than twice the target size, and leave the rest to filtered scaling
+				int sub = Math.max(1, (longest+(maxDimension*2)-1)/(maxDimension*2));
+				param.setSourceSubsampling(sub, sub, 0, 0);
+				img = reader.read(0, param);
+				orientation = "image/png".equals(baseType) || "image/bmp".equals(baseType) ? 1 : exifOrientation(reader);
+			} finally {
+				reader.dispose();
+			}
+			boolean alpha = img.getColorModel().hasAlpha();
+			var scaled = scale(img, w, h, alpha);
+			if (alpha && isOpaque(scaled)) {
+				alpha = false;
+				scaled = scale(scaled, w, h, false);
+			}
+			// done after scaling as it's the same either way, and much cheaper on the smaller image
+			scaled = orient(scaled, orientation);
+			byte[] out = alpha ? encodePng(scaled) : encodeJpeg(scaled);
+			if (out.length >= data.length) return null;
+			return new Result(out, alpha ? "image/png" : "image/jpeg");
+		} catch (IOException | RuntimeException e) {
+			// plenty of images in the wild are subtly broken; serve them as they came
+			log.debug("Failed to shrink image", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Halve the image repeatedly until it's within a factor of two of the target, then do the rest
+	 * in one step, as a single bilinear pass from much larger throws away most of the pixels.
+	 */
+	private static BufferedImage scale(BufferedImage src, int w, int h, boolean alpha) {
+		int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		var cur = src;
+		do {
+			int cw = Math.max(w, cur.getWidth()/2);
+			int ch = Math.max(h, cur.getHeight()/2);
+			var next = new BufferedImage(cw, ch, type);
+			var g = next.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(cur, 0, 0, cw, ch, null);
+			g.dispose();
+			cur = next;
+		} while (cur.getWidth() != w || cur.getHeight() != h);
+		return cur;
+	}
+
+	/**
+	 * @return the orientation from the JPEG's EXIF data, 1 to 8, or 1 if there isn't one
+	 */
+	private static int exifOrientation(ImageReader reader) throws IOException {
+		var meta = reader.getImageMetadata(0);
+		if (meta == null || !"javax_imageio_jpeg_image_1.0".equals(meta.getNativeMetadataFormatName())) return 1;
+		var root = meta.getAsTree("javax_imageio_jpeg_image_1.0");
+		// the JDK doesn't parse APP1, and leaves it to us as an unknown marker
+		var markers = ((IIOMetadataNode)root).getElementsByTagName("unknown");
+		for (int i = 0; i < markers.getLength(); i++) {
+			var node = (IIOMetadataNode)markers.item(i);
+			if (!"225".equals(node.getAttribute("MarkerTag"))) continue;
+			if (!(node.getUserObject() instanceof byte[] data)) continue;
+			if (data.length < 14 || !new String(data, 0, 6, StandardCharsets.ISO_8859_1).equals("Exif\0\0")) continue;
+			var tiff = ByteBuffer.wrap(data, 6, data.length-6).slice();
+			if (tiff.get(0) == 'I' && tiff.get(1) == 'I') {
+				tiff.order(ByteOrder.LITTLE_ENDIAN);
+			} else if (tiff.get(0) != 'M' || tiff.get(1) != 'M') {
+				return 1;
+			}
+			int ifd = tiff.getInt(4);
+			if (ifd < 8 || ifd > tiff.limit()-2) return 1;
+			int count = tiff.getShort(ifd) & 0xFFFF;
+			for (int j = 0; j < count; j++) {
+				int entry = ifd+2+(j*12);
+				if (entry+12 > tiff.limit()) break;
+				// a SHORT, stored left-aligned in the value field
+				if ((tiff.getShort(entry) & 0xFFFF) == 0x0112 && tiff.getShort(entry+2) == 3) {
+					int o = tiff.getShort(entry+8) & 0xFFFF;
+					return o >= 1 && o <= 8 ? o : 1;
+				}
+			}
+			return 1;
+		}
+		return 1;
+	}
+
+	/**
+	 * Rotate and flip the image as EXIF orientation {@code o} says it should be displayed.
+	 */
+	private static BufferedImage orient(BufferedImage src, int o) {
+		if (o <= 1) return src;
+		int w = src.getWidth(), h = src.getHeight();
+		var tx = switch (o) {
+			case 2 -> new AffineTransform(-1, 0, 0, 1, w, 0);
+			case 3 -> new AffineTransform(-1, 0, 0, -1, w, h);
+			case 4 -> new AffineTransform(1, 0, 0, -1, 0, h);
+			case 5 -> new AffineTransform(0, 1, 1, 0, 0, 0);
+			case 6 -> new AffineTransform(0, 1, -1, 0, h, 0);
+			case 7 -> new AffineTransform(0, -1, -1, 0, h, w);
+			default -> new AffineTransform(0, -1, 1, 0, 0, w);
+		};
+		boolean swap = o >= 5;
+		var out = new BufferedImage(swap ? h : w, swap ? w : h, src.getType());
+		var g = out.createGraphics();
+		g.drawImage(src, tx, null);
+		g.dispose();
+		return out;
+	}
+
+	private static boolean isOpaque(BufferedImage img) {
+		// lots of PNGs have an alpha channel they don't use
+		var raster = img.getAlphaRaster();
+		if (raster == null) return true;
+		int[] row = new int[raster.getWidth()];
+		for (int y = 0; y < raster.getHeight(); y++) {
+			raster.getSamples(0, y, row.length, 1, 0, row);
+			for (int a : row) {
+				if (a != 255) return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] encodePng(BufferedImage img) throws IOException {
+		var baos = new ByteArrayOutputStream();
+		ImageIO.write(img, "png", baos);
+		return baos.toByteArray();
+	}
+
+	private byte[] encodeJpeg(BufferedImage img) throws IOException {
+		var writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		var baos = new ByteArrayOutputStream();
+		try (var ios = ImageIO.createImageOutputStream(baos)) {
+			writer.setOutput(ios);
+			var param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+			param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+			writer.write(null, new IIOImage(img, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return baos.toByteArray();
+	}
+
+}
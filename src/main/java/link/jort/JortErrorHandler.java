@@ -74,6 +74,8 @@ public class JortErrorHandler extends ErrorHandler {
 			case 421 -> "We don't recognize the host "+HtmlEscapers.htmlEscaper().escape(request.getHeader("Host"));
 			case 500 -> "Something exploded! Please let Una know, such as via <a href=\"mailto:me@unascribed.com\">email</a> or <a href=\"https://mastodon.sleeping.town/@unascribed\">the Fediverse</a>.";
 			case 502 -> "We couldn't contact the remote server.";
+			case 503 -> "We're fetching too many pages right now. Please try again in a little while.";
+			case 504 -> "The remote server took too long to respond.";
 			case 509 -> "The remote server returned a response larger than we're willing to process.";
 			default -> HttpStatus.getMessage(code);
 		});
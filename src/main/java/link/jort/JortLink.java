@@ -2,24 +2,33 @@ package link.jort;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
 import java.net.http.HttpClient;
 import java.net.http.HttpClient.Redirect;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Pattern;
 
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.io.ConnectionStatistics;
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.jsoup.Jsoup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -28,14 +37,19 @@ import com.unascribed.asyncsimplelog.AsyncSimpleLog;
 import com.google.common.base.Ascii;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.net.HostAndPort;
+import com.google.common.net.InternetDomainName;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import blue.endless.jankson.Jankson;
 import blue.endless.jankson.JsonArray;
 import blue.endless.jankson.JsonElement;
 import blue.endless.jankson.JsonObject;
 import blue.endless.jankson.JsonPrimitive;
+import blue.endless.jankson.api.SyntaxError;
 import sun.misc.Signal;
 
 public class JortLink {
@@ -45,37 +59,49 @@ public class JortLink {
 	
 	public static final ScheduledExecutorService SCHED = Executors.newScheduledThreadPool(0);
 	
-	private static final File configFile = new File("config.jkson");
+	private static File configFile = new File("config.jkson");
 	public static JsonObject config;
 
 	public static String http = "https";
-	public static final Set<String> ignoredHosts = new HashSet<>();
+	public static volatile DomainSet ignoredHosts = DomainSet.EMPTY;
+	public static volatile DomainSet deniedHosts = DomainSet.EMPTY;
 	public static final BiMap<String, Host> hosts = HashBiMap.create();
 	public static final List<Pattern> uaPatterns = new ArrayList<>();
 	public static Path cacheDir;
 	public static String filesDir;
 	public static boolean useCacheDomain;
+	public static AdmissionController admission;
+	public static Tracer tracer;
+	public static TrendingTracker trending;
+	public static UrlCanonicalizer canonicalizer;
+	public static ImageResizer images;
+	public static final ConnectionStats connStats = new ConnectionStats();
+	public static Duration upstreamTimeout;
+	public static long asyncTimeout;
 	
 	private static Server server;
 	
+	private static final long ASYNC_HEADROOM = 30_000;
 	
-	public static final HttpClient client = HttpClient.newBuilder()
-			.followRedirects(Redirect.ALWAYS)
-			.build();
+	// built on first use, as it spins up threads and loads a good chunk of the JDK's networking stack
+	public static final Supplier<HttpClient> client = Suppliers.memoize(JortLink::buildClient);
 	
 	public static void main(String[] args) throws Exception {
 		try {
 			System.setProperty("networkaddress.cache.ttl", "30");
 			System.setProperty("networkaddress.cache.negative.ttl", "10");
+			// image resizing uses AWT, which must never try to find a display
+			System.setProperty("java.awt.headless", "true");
 			AsyncSimpleLog.setAnsi(true);
 			AsyncSimpleLog.silence(Pattern.compile("^(Started|Stopped) Server(Connector)?@"));
 			AsyncSimpleLog.startLogging();
 			log.info("This jort.link has Super Denim Powers");
 			
 			Stopwatch initSw = Stopwatch.createStarted();
-			config = Jankson.builder()
-						.allowBareRootObject()
-					.build().load(configFile);
+			if (args.length > 0) {
+				configFile = new File(args[0]);
+			}
+			config = loadConfig();
 			
 			for (Host h : Host.values()) {
 				hosts.put(config.recursiveGet(String.class, "hosts."+Ascii.toLowerCase(h.name())), h);
@@ -91,25 +117,63 @@ public class JortLink {
 			filesDir = config.get(String.class, "files");
 			
 			useCacheDomain = config.getBoolean("useCacheDomain", true);
+			admission = AdmissionController.fromConfig(config.getObject("admission"));
+			tracer = Tracer.fromConfig(config.getObject("tracing"));
+			trending = TrendingTracker.fromConfig(config.getObject("trending"));
+			canonicalizer = UrlCanonicalizer.fromConfig(config.getObject("canonicalization"));
+			images = ImageResizer.fromConfig(config.getObject("images"));
+			upstreamTimeout = Duration.ofMillis(upstream().getLong("requestTimeout", 30000));
+			// a miss can queue, then wait for headers, then stream the body; the async context has to
+			// outlive all of that, or Jetty answers for us and our own 503s and 504s never get out
+			asyncTimeout = admission.maxQueueWait()+upstreamTimeout.toMillis()+ASYNC_HEADROOM;
+			SCHED.scheduleWithFixedDelay(trending::decay, trending.halfLife(), trending.halfLife(), TimeUnit.SECONDS);
 			
 			config.get(JsonArray.class, "uaPatterns").stream()
 				.mapMulti(JortLink::strings)
 				.map(Pattern::compile)
 				.forEach(uaPatterns::add);
 			
-			config.get(JsonArray.class, "ignoredHosts").stream()
-				.mapMulti(JortLink::strings)
-				.forEach(ignoredHosts::add);
+			loadHostLists(config);
+			hostListStamp = hostListStamp(config);
+			SCHED.scheduleWithFixedDelay(() -> {
+				try {
+					var cfg = loadConfig();
+					if (hostListStamp(cfg) != hostListStamp) {
+						reloadHostLists();
+					}
+				} catch (Exception e) {
+					log.warn("Failed to check host lists for changes", e);
+				}
+			}, 1, 1, TimeUnit.MINUTES);
 			
 			server = new Server();
-			ServerConnector conn = new ServerConnector(server);
-			conn.setHost(host);
-			conn.setPort(port);
-			server.addConnector(conn);
-			server.setHandler(new OuterHandler(new JortLinkHandler()));
+			server.addConnector(frontConnector("front", host, port, config.getObject("connector"), false));
+			var h2c = config.getObject("h2c");
+			String h2cHost = null;
+			int h2cPort = 0;
+			if (h2c != null) {
+				h2cHost = MoreObjects.firstNonNull(h2c.get(String.class, "bind"), host);
+				h2cPort = h2c.getInt("port", 17314);
+				server.addConnector(frontConnector("h2c", h2cHost, h2cPort, h2c, true));
+			}
+			Handler handler = new JortLinkHandler();
+			var admin = config.getObject("admin");
+			if (admin != null) {
+				ServerConnector adminConn = new ServerConnector(server);
+				adminConn.setName("admin");
+				adminConn.setHost(MoreObjects.firstNonNull(admin.get(String.class, "bind"), "127.0.0.1"));
+				adminConn.setPort(admin.getInt("port", 17313));
+				server.addConnector(adminConn);
+				handler = new AdminHandler(adminConn, handler);
+			}
+			server.setHandler(new OuterHandler(handler));
 			server.setErrorHandler(new JortErrorHandler());
 			server.start();
 			log.info("jort.link v{} ready on http://{}:{} after {}", VERSION, host, port, initSw);
+			if (h2c != null) {
+				log.info("Also accepting h2c on {}:{}", h2cHost, h2cPort);
+			}
+			SCHED.execute(JortLink::warmUp);
 			
 			SCHED.scheduleWithFixedDelay(() -> {
 				try {
@@ -132,12 +196,141 @@ public class JortLink {
 				Signal.handle(new Signal("INT"), (sig) -> {
 					doStop();
 				});
+				Signal.handle(new Signal("HUP"), (sig) -> {
+					reloadHostLists();
+				});
 			} catch (Throwable t) {}
 		} catch (Throwable t) {
 			log.error("Failed to start", t);
 		}
 	}
 	
+	private static ServerConnector frontConnector(String name, String host, int port, JsonObject tuning, boolean h2c) {
+		if (tuning == null) tuning = new JsonObject();
+		var httpConfig = new HttpConfiguration();
+		ConnectionFactory[] factories;
+		if (h2c) {
+			var h2 = new HTTP2CServerConnectionFactory(httpConfig);
+			h2.setMaxConcurrentStreams(tuning.getInt("maxConcurrentStreams", 128));
+			// HTTP/1.1 stays available for upgrades and for anything that doesn't send the preface
+			factories = new ConnectionFactory[] { new HttpConnectionFactory(httpConfig), h2 };
+		} else {
+			factories = new ConnectionFactory[] { new HttpConnectionFactory(httpConfig) };
+		}
+		// -1 lets Jetty size these based on the number of CPUs
+		var conn = new ServerConnector(server, tuning.getInt("acceptors", -1), tuning.getInt("selectors", -1), factories);
+		conn.setName(name);
+		conn.setHost(host);
+		conn.setPort(port);
+		conn.setIdleTimeout(tuning.getLong("idleTimeout", 30000));
+		conn.addBean(new ConnectionStatistics());
+		return conn;
+	}
+	
+	private static JsonObject upstream() {
+		return MoreObjects.firstNonNull(config.getObject("upstream"), new JsonObject());
+	}
+	
+	private static HttpClient buildClient() {
+		var upstream = upstream();
+		var builder = HttpClient.newBuilder()
+				.version(upstream.getBoolean("http2", true) ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofMillis(upstream.getLong("connectTimeout", 10000)))
+				.executor(Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+						.setNameFormat("jort.link upstream #%d")
+						.setDaemon(true)
+						.build()))
+				.followRedirects(Redirect.ALWAYS);
+		String proxy = config.get(String.class, "upstreamProxy");
+		if (proxy != null) {
+			var hap = HostAndPort.fromString(proxy);
+			builder.proxy(ProxySelector.of(new InetSocketAddress(hap.getHost(), hap.getPort())));
+		}
+		return builder.build();
+	}
+	
+	/**
+	 * Load the things only needed once requests start arriving, so the first request to need
+	 * them doesn't pay for it.
+	 */
+	private static void warmUp() {
+		try {
+			Stopwatch sw = Stopwatch.createStarted();
+			client.get();
+			// pulls in the public suffix tables
+			InternetDomainName.from("jort.link").hasRegistrySuffix();
+			Jsoup.parse("<!DOCTYPE html><meta property=\"og:title\" content=\"jort\">").html();
+			log.debug("Warmed up after {}", sw);
+		} catch (Throwable t) {
+			log.warn("Failed to warm up", t);
+		}
+	}
+	
+	private static JsonObject loadConfig() throws IOException, SyntaxError {
+		return Jankson.builder()
+					.allowBareRootObject()
+				.build().load(configFile);
+	}
+	
+	private static long hostListStamp;
+	
+	private static void reloadHostLists() {
+		try {
+			var cfg = loadConfig();
+			long stamp = hostListStamp(cfg);
+			loadHostLists(cfg);
+			hostListStamp = stamp;
+			log.info("Reloaded host lists; {} ignored, {} denied", ignoredHosts.size(), deniedHosts.size());
+		} catch (Exception e) {
+			log.warn("Failed to reload host lists, keeping the old ones", e);
+		}
+	}
+	
+	private static void loadHostLists(JsonObject cfg) throws IOException {
+		// build both before swapping either in, so a bad file doesn't leave us half-reloaded
+		var ignored = loadHostList(cfg, "ignoredHosts", "ignoredHostFiles");
+		var denied = loadHostList(cfg, "deniedHosts", "deniedHostFiles");
+		ignoredHosts = ignored;
+		deniedHosts = denied;
+	}
+	
+	private static DomainSet loadHostList(JsonObject cfg, String inlineKey, String filesKey) throws IOException {
+		List<String> domains = new ArrayList<>();
+		var inline = cfg.get(JsonArray.class, inlineKey);
+		if (inline != null) {
+			inline.stream()
+				.mapMulti(JortLink::strings)
+				.forEach(domains::add);
+		}
+		for (var f : hostListFiles(cfg, filesKey)) {
+			domains.addAll(DomainSet.readList(f));
+		}
+		return DomainSet.of(domains);
+	}
+	
+	private static List<Path> hostListFiles(JsonObject cfg, String key) {
+		var arr = cfg.get(JsonArray.class, key);
+		if (arr == null) return List.of();
+		return arr.stream()
+				.mapMulti(JortLink::strings)
+				.map(Path::of)
+				.toList();
+	}
+	
+	/**
+	 * Cheap fingerprint of the config file and every host list it refers to, to notice when any of
+	 * them change.
+	 */
+	private static long hostListStamp(JsonObject cfg) throws IOException {
+		long stamp = configFile.lastModified();
+		for (var key : new String[] {"ignoredHostFiles", "deniedHostFiles"}) {
+			for (var f : hostListFiles(cfg, key)) {
+				stamp = (stamp*31)+Files.getLastModifiedTime(f).toMillis();
+			}
+		}
+		return stamp;
+	}
+	
 	private static boolean stopping = false;
 	
 	private static void doStop() {
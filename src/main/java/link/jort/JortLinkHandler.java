@@ -1,7 +1,5 @@
 package link.jort;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
@@ -9,33 +7,41 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.net.http.HttpRequest;
+import java.net.http.HttpTimeoutException;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
-import org.eclipse.jetty.http.CompressedContentFormat;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.io.EofException;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.HandlerWrapper;
-import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import link.jort.Trace.Phase;
+
 import com.google.common.base.Charsets;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
@@ -45,7 +51,6 @@ import com.google.common.escape.Escaper;
 import com.google.common.escape.Escapers;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
-import com.google.common.io.CountingInputStream;
 import com.google.common.io.CountingOutputStream;
 import com.google.common.io.MoreFiles;
 import com.google.common.net.InternetDomainName;
@@ -62,18 +67,18 @@ public final class JortLinkHandler extends HandlerWrapper {
 
 	private static final long M = 1024*1024;
 	
-	record RequestResult(Path file, long offset, String contentType, boolean cached, int status, String message) {
+	record RequestResult(Path file, long offset, String contentType, String contentEncoding, boolean cached, int status, String message, TeeFile tee, Integer bodyChecksum) {
 		
-		public RequestResult(Path file, long offset, String contentType, boolean cached, int status) {
-			this(file, offset, contentType, cached, status, null);
+		public RequestResult(Path file, long offset, String contentType, String contentEncoding, boolean cached, int status, Integer bodyChecksum) {
+			this(file, offset, contentType, contentEncoding, cached, status, null, null, bodyChecksum);
 		}
 		
 		public RequestResult(int status, String message) {
-			this(null, 0, null, false, status, message);
+			this(null, 0, null, null, false, status, message, null, null);
 		}
 		
 		public RequestResult withCached() {
-			return new RequestResult(file, offset, contentType, true, status, message);
+			return new RequestResult(file, offset, contentType, contentEncoding, true, status, message, null, bodyChecksum);
 		}
 	}
 
@@ -83,6 +88,8 @@ public final class JortLinkHandler extends HandlerWrapper {
 			.maximumSize(1024)
 			.softValues()
 			.build();
+	// results for trending keys, kept out of pasts so the long tail can't evict them
+	private final Map<String, RequestResult> pinned = new ConcurrentHashMap<>();
 	
 	private static final Splitter SLASH_SPLITTER2 = Splitter.on('/').limit(2).omitEmptyStrings();
 	private static final Splitter SLASH_SPLITTER3 = Splitter.on('/').limit(3).omitEmptyStrings();
@@ -95,22 +102,24 @@ public final class JortLinkHandler extends HandlerWrapper {
 			.build();
 	
 	public JortLinkHandler() {
-		var resource = new ResourceHandler();
-		resource.setResourceBase(JortLink.filesDir.toString());
-		resource.setDirectoriesListed(false);
-		resource.setWelcomeFiles(new String[] {"index.html"});
-		resource.setCacheControl("public, max-age=86400");
-		resource.setRedirectWelcome(false);
-		resource.setPrecompressedFormats(new CompressedContentFormat[] {
-				CompressedContentFormat.GZIP,
-				CompressedContentFormat.BR
-		});
-		setHandler(resource);
+		setHandler(StaticSiteHandler.fromConfig(Path.of(JortLink.filesDir), JortLink.config.getObject("siteCache")));
+		JortLink.SCHED.scheduleWithFixedDelay(() -> {
+			pinned.entrySet().removeIf((en) -> {
+				if (JortLink.trending.isTrending(en.getKey())) return false;
+				synchronized (pasts) {
+					pasts.put(en.getKey(), en.getValue());
+				}
+				return true;
+			});
+		}, 1, 1, TimeUnit.MINUTES);
 	}
 
 	@Override
 	public void handle(String target, Request request, HttpServletRequest bareServletRequest, HttpServletResponse response) throws IOException, ServletException {
-		Host host = Host.of(request.getHeader("Host"));
+		String hostStr = request.getHeader("Host");
+		// h2c clients may only send :authority
+		if (hostStr == null) hostStr = request.getHttpURI().getAuthority();
+		Host host = Host.of(hostStr);
 		if (host == null) {
 			response.sendError(421);
 			return;
@@ -182,6 +191,10 @@ public final class JortLinkHandler extends HandlerWrapper {
 			serveFile(host, target, request, bareServletRequest, response);
 			return;
 		}
+		if (JortLink.deniedHosts.matches(tgtHost)) {
+			response.sendError(403, "Destination is blocked");
+			return;
+		}
 		String uri;
 		if (split.hasNext()) {
 			uri = "/"+split.next()+urifyQuery(request.getQueryString());
@@ -194,7 +207,7 @@ public final class JortLinkHandler extends HandlerWrapper {
 		}
 		String tgtHttp = (host.insecure()?"http":"https");
 		String tgtUri = tgtHttp+"://"+tgtHost+uri;
-		if ((JortLink.useCacheDomain ? !host.cache() : !fedi) || JortLink.ignoredHosts.contains(tgtHost)) {
+		if ((JortLink.useCacheDomain ? !host.cache() : !fedi) || JortLink.ignoredHosts.matches(tgtHost)) {
 			sendRedirect(response, 301, tgtUri);
 			return;
 		}
@@ -202,53 +215,86 @@ public final class JortLinkHandler extends HandlerWrapper {
 			sendRedirect(response, 307, http+"://"+Host.CACHE+"/"+host+target);
 			return;
 		}
+		// the original URI is what humans get redirected to, but the canonical one is what we fetch and cache
+		String canonUri = JortLink.canonicalizer.canonicalize(tgtUri);
+		var trace = new Trace(Phase.REQUEST, canonUri);
 		InetAddress[] addrs;
 		try {
 			addrs = InetAddress.getAllByName(tgtHost);
 		} catch (UnknownHostException e) {
 			log.warn("Address lookup failed: {}", e.getMessage());
+			trace.lap(Phase.DNS);
+			trace.setOutcome("DNS_FAILED");
 			response.sendError(502, "Address lookup failed");
+			JortLink.tracer.finish(trace);
 			return;
 		}
+		trace.lap(Phase.DNS);
 		for (var addr : addrs) {
 			if (addr.isAnyLocalAddress() || addr.isLinkLocalAddress() || addr.isLoopbackAddress()
 					|| addr.isMulticastAddress() || addr.isSiteLocalAddress()) {
+				trace.setOutcome("LOCAL");
 				response.sendError(403, "Cowardly refusing to connect to a local address");
+				JortLink.tracer.finish(trace);
 				return;
 			}
 		}
-		String hash = Hashing.sha256().hashString(tgtUri, Charsets.UTF_8).toString();
-		response.setHeader("Link", "<"+LINK_ESCAPER.escape(tgtUri)+">; rel=\"canonical\"");
-		var cachedRes = pasts.getIfPresent(hash);
+		String hash = Hashing.sha256().hashString(canonUri, Charsets.UTF_8).toString();
+		response.setHeader("Link", "<"+LINK_ESCAPER.escape(canonUri)+">; rel=\"canonical\"");
+		boolean trending = JortLink.trending.record(hash, canonUri);
+		var cachedRes = pinned.get(hash);
+		if (cachedRes == null) {
+			cachedRes = pasts.getIfPresent(hash);
+			if (trending && cachedRes != null) {
+				pinned.put(hash, cachedRes);
+			}
+		}
 		if (cachedRes != null && (cachedRes.file == null || Files.exists(cachedRes.file))) {
+			trace.setOutcome("HIT");
 			handleResult(cachedRes, request, response);
+			trace.lap(Phase.RESPOND);
+			JortLink.tracer.finish(trace);
 			return;
 		}
-		AsyncContext ctx = request.startAsync(request, response);
 		String hashDir = hash.substring(0, 2);
+		String errorSuffix = " ("+canonUri+")";
+		var file = JortLink.cacheDir.resolve(hashDir).resolve(hash);
+		// checked before admission, so disk hits never queue behind or get shed for upstream fetches
+		if (Files.exists(file) && !JortLink.isExpired(file)) {
+			var hdr = CacheHeader.read(file);
+			trace.lap(Phase.DISK);
+			// a corrupt or truncated file is simply fetched again
+			if (hdr != null) {
+				var res = new RequestResult(file, hdr.bodyOffset(), hdr.contentType(), hdr.contentEncoding(), true, hdr.status(), hdr.bodyChecksum());
+				remember(hash, res);
+				trace.setOutcome("DISK");
+				handleResult(res, request, response);
+				trace.lap(Phase.RESPOND);
+				JortLink.tracer.finish(trace);
+				return;
+			}
+		}
+		CompletableFuture<RequestResult> future;
+		boolean leader = false;
 		synchronized (futures) {
-			var future = futures.get(hash);
-			String errorSuffix = " ("+tgtUri+")";
+			future = futures.get(hash);
 			if (future == null) {
-				future = CompletableFuture.supplyAsync(() -> {
+				var result = new CompletableFuture<RequestResult>();
+				var ft = new Trace(Phase.FETCH, canonUri);
+				var fetch = JortLink.admission.submit(() -> {
+					ft.lap(Phase.QUEUE);
 					try {
-						var file = JortLink.cacheDir.resolve(hashDir).resolve(hash);
-						if (Files.exists(file) && !JortLink.isExpired(file)) {
-							var bs = MoreFiles.asByteSource(file);
-							try (var in = new CountingInputStream(bs.openStream())) {
-								var dis = new DataInputStream(in);
-								String type = dis.readUTF();
-								int status = dis.readUnsignedShort();
-								long ofs = in.getCount();
-								return new RequestResult(file, ofs, type, true, status);
-							}
-						}
 						var tmpFile = file.resolveSibling(file.getFileName()+".tmp");
+						var tee = new TeeFile(tmpFile);
 						try {
-							var resp = JortLink.client.send(HttpRequest.newBuilder(new URI(tgtUri))
+							var resp = JortLink.client.get().send(HttpRequest.newBuilder(new URI(canonUri))
 									.header("User-Agent", "Mozilla/5.0 (jort.link shield; +https://jort.link)")
+									.timeout(JortLink.upstreamTimeout)
 									.GET().build(), BodyHandlers.ofInputStream());
-							if (resp.headers().firstValueAsLong("Content-Length").orElse(0) > 8*M) {
+							ft.lap(Phase.UPSTREAM);
+							JortLink.connStats.upstreamResponse(resp.version());
+							long length = resp.headers().firstValueAsLong("Content-Length").orElse(-1);
+							if (length > 8*M) {
 								resp.body().close();
 								return new RequestResult(509, "Response body is too large");
 							}
@@ -260,21 +306,28 @@ public final class JortLinkHandler extends HandlerWrapper {
 							} else {
 								baseType = "application/octet-stream";
 							}
+							String encoding = resp.headers().firstValue("Content-Encoding").orElse(null);
+							String etag = resp.headers().firstValue("ETag").orElse(null);
 							int status = resp.statusCode();
-							long offset = 0;
+							long offset = CacheHeader.SIZE;
 							MoreFiles.createParentDirectories(tmpFile);
+							var crc = new CRC32C();
 							try (var in = ByteStreams.limit(resp.body(), 8*M);
-									var out = new CountingOutputStream(Files.newOutputStream(tmpFile))) {
+									var fc = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+								var out = new CountingOutputStream(new CheckedOutputStream(Channels.newOutputStream(fc), crc));
 								interface IORunnable { void run() throws IOException; }
 								IORunnable writer;
+								boolean stream = false;
 								if ("text/html".equals(baseType)) {
 									if (status == 200) status = 203;
+									// we reserialize the document, so any upstream encoding no longer applies
+									encoding = null;
 									String charset = m.group(2);
 									if (charset == null) {
 										charset = "utf-8";
 										type = "text/html; charset=utf-8";
 									}
-									var doc = Jsoup.parse(new UncloseableInputStream(in), charset, tgtUri);
+									var doc = Jsoup.parse(new UncloseableInputStream(in), charset, canonUri);
 									// remove large tags that have no meaning here
 									doc.getElementsByTag("svg").remove();
 									doc.getElementsByTag("style").remove();
@@ -291,6 +344,7 @@ public final class JortLinkHandler extends HandlerWrapper {
 									doc.getElementsByTag("meta").forEach(processLink("content"));
 									doc.getElementsByTag("link").forEach(processLink("href"));
 									doc.getElementsByTag("img").forEach(processLink("src"));
+									ft.lap(Phase.PARSE);
 									Charset ch;
 									try {
 										ch = Charset.forName(charset);
@@ -303,61 +357,224 @@ public final class JortLinkHandler extends HandlerWrapper {
 										doc.html(w);
 										w.flush();
 									};
+								} else if (encoding == null && JortLink.images.handles(baseType) && JortLink.images.tryAcquire()) {
+									// images are read whole up front, so their type is known before the header is written;
+									// the permit bounds how many are buffered at once, and without one they're streamed as-is
+									byte[] body;
+									try {
+										byte[] data = in.readAllBytes();
+										ft.lap(Phase.BODY);
+										var shrunk = JortLink.images.shrink(data, baseType);
+										ft.lap(Phase.IMAGE);
+										if (shrunk != null) {
+											body = shrunk.data();
+											type = shrunk.contentType();
+											// the upstream's tag no longer describes what we're storing
+											etag = null;
+										} else {
+											body = data;
+										}
+									} finally {
+										JortLink.images.release();
+									}
+									writer = () -> out.write(body);
 								} else {
+									// pass-through bodies are streamed to waiters as they're written
+									stream = true;
 									writer = () -> {
-										in.transferTo(out);
+										byte[] buf = new byte[8192];
+										int n;
+										while ((n = in.read(buf)) != -1) {
+											ft.lap(Phase.BODY);
+											out.write(buf, 0, n);
+											ft.lap(Phase.WRITE);
+											tee.advance(CacheHeader.SIZE+out.getCount());
+										}
 									};
 								}
-								var dos = new DataOutputStream(out);
-								dos.writeUTF(type);
-								dos.writeShort(status);
-								offset = out.getCount();
+								var hdr = new CacheHeader(status, offset, -1, System.currentTimeMillis(), type, encoding, etag,
+										resp.headers().firstValue("Last-Modified").orElse(null), null);
+								fc.write(hdr.encode());
+								tee.advance(offset);
+								if (stream) {
+									tee.setLength(length);
+									result.complete(new RequestResult(tmpFile, offset, type, encoding, false, status, null, tee, null));
+								}
 								writer.run();
+								// now that we know the length and checksum of the body, fill them in
+								fc.write(hdr.withBody(out.getCount(), (int)crc.getValue()).encode(), 0);
+								ft.lap(Phase.WRITE);
 							} catch (IOException e) {
 								log.warn("Request failed"+errorSuffix, e);
+								tee.abort(e);
 								return new RequestResult(502, "Request failed");
 							}
-							// the destination may exist if we are re-retrieving after expiring a cache entry
-							Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
-							return new RequestResult(file, offset, type, false, status);
+							tee.commit(file);
+							return new RequestResult(file, offset, type, encoding, false, status, (int)crc.getValue());
 						} catch (URISyntaxException | InterruptedException e) {
 							log.warn("Request failed"+errorSuffix, e);
 							return new RequestResult(502, "Request failed");
+						} catch (HttpTimeoutException e) {
+							JortLink.connStats.upstreamTimeout();
+							log.warn("Request timed out"+errorSuffix);
+							tee.abort(e);
+							return new RequestResult(504, "Request timed out");
+						} catch (IOException e) {
+							tee.abort(e);
+							throw e;
 						} finally {
+							// a no-op if committed; otherwise make sure nothing is left waiting on it,
+							// whatever went wrong
+							tee.abort(new IOException("Fetch ended without completing"));
 							Files.deleteIfExists(tmpFile);
 						}
 					} catch (IOException e) {
 						log.error("Internal error"+errorSuffix, e);
 						return new RequestResult(500, "Internal server error");
 					}
-				}).whenComplete((res, t) -> {
-					synchronized (pasts) {
-						pasts.put(hash, res.withCached());
-					}
-					synchronized (futures) {
-						futures.remove(hash);
-					}
 				});
-				futures.put(hash, future);
-			}
-			future.whenComplete((res, t) -> {
-				if (res == null) {
-					log.error("Future did not complete successfully"+errorSuffix, t);
-					res = new RequestResult(500, "Internal server error");
+				if (fetch != null) {
+					fetch.whenComplete((res, t) -> {
+						ft.setOutcome(res != null ? Integer.toString(res.status) : t instanceof RejectedExecutionException ? "SHED" : "failed");
+						JortLink.tracer.finish(ft);
+						if (res != null) {
+							remember(hash, res);
+						}
+						synchronized (futures) {
+							futures.remove(hash);
+						}
+						// no-op if the result was already handed out as a stream
+						if (res != null) {
+							result.complete(res);
+						} else {
+							result.completeExceptionally(t);
+						}
+					});
+					future = result;
+					futures.put(hash, future);
+					leader = true;
 				}
-				try {
-					handleResult(res, request, response);
-				} catch (IOException e) {
-					// EofException means the client closed the connection, we don't care
-					if (!(e instanceof EofException)) {
-						log.error("Internal error", e);
+			}
+		}
+		if (future == null) {
+			// shed misses early so hits and in-flight fetches keep flowing
+			response.setHeader("Retry-After", Integer.toString(JortLink.admission.retryAfter()));
+			response.sendError(503, "Too many requests in flight");
+			trace.setOutcome("SHED");
+			JortLink.tracer.finish(trace);
+			return;
+		}
+		trace.setOutcome(leader ? "MISS" : "COALESCED");
+		AsyncContext ctx = request.startAsync(request, response);
+		ctx.setTimeout(JortLink.asyncTimeout);
+		Runnable finish = () -> {
+			trace.lap(Phase.RESPOND);
+			JortLink.tracer.finish(trace);
+			ctx.complete();
+		};
+		future.whenComplete((res, t) -> {
+			try {
+				ctx.start(() -> {
+					trace.lap(Phase.WAIT);
+					if (t instanceof RejectedExecutionException) {
+						// shed after waiting in the queue for too long
+						trace.setOutcome("SHED");
+						response.setHeader("Retry-After", Integer.toString(JortLink.admission.retryAfter()));
 						try {
-							response.sendError(500);
-						} catch (IOException e1) {}
+							response.sendError(503, "Too many requests in flight");
+						} catch (IOException e) {}
+						finish.run();
+						return;
 					}
-				}
-				ctx.complete();
-			});
+					var fres = res;
+					if (fres == null) {
+						log.error("Future did not complete successfully"+errorSuffix, t);
+						fres = new RequestResult(500, "Internal server error");
+					}
+					if (fres.tee != null) {
+						streamResult(fres, request, response, ctx, finish);
+						return;
+					}
+					try {
+						handleResult(fres, request, response);
+					} catch (IOException e) {
+						handleFailure(e, request, response);
+					}
+					finish.run();
+				});
+			} catch (IllegalStateException e) {
+				// the async context already timed out, and Jetty answered for us
+				log.warn("Request timed out before its result was ready"+errorSuffix);
+				trace.setOutcome("TIMEOUT");
+				JortLink.tracer.finish(trace);
+			}
+		});
+	}
+	
+	private void remember(String hash, RequestResult res) {
+		synchronized (pasts) {
+			pasts.put(hash, res.withCached());
+		}
+		if (JortLink.trending.isTrending(hash)) {
+			pinned.put(hash, res.withCached());
+		} else {
+			pinned.remove(hash);
+		}
+	}
+	
+	private void handleFailure(Throwable t, Request request, HttpServletResponse response) {
+		// EofException means the client closed the connection, we don't care
+		if (t instanceof EofException) return;
+		if (response.isCommitted()) {
+			// the upstream failed mid-stream; make sure the client doesn't think it got the whole body
+			request.getHttpChannel().abort(t);
+		} else {
+			log.error("Internal error", t);
+			try {
+				response.sendError(500);
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Stream a result that's still being fetched, following the tee without holding a thread while
+	 * waiting on it or on the client.
+	 */
+	private void streamResult(RequestResult res, Request request, HttpServletResponse response, AsyncContext ctx, Runnable finish) {
+		var tee = res.tee;
+		try {
+			long avail;
+			try {
+				// hold the headers until the first chunk arrives, so we can still send an error
+				avail = tee.poll(res.offset, () -> ctx.start(() -> streamResult(res, request, response, ctx, finish)));
+			} catch (IOException e) {
+				handleResult(new RequestResult(502, "Request failed"), request, response);
+				finish.run();
+				return;
+			}
+			if (avail == -1) return;
+			response.setHeader("Upstream-Cache", "MISS");
+			if (tee.length() >= 0) {
+				response.setContentLengthLong(tee.length());
+			}
+			response.setStatus(res.status);
+			response.setHeader("Cache-Control", "public, max-age=86400");
+			response.setHeader("Content-Type", res.contentType);
+			if (res.contentEncoding != null) {
+				response.setHeader("Content-Encoding", res.contentEncoding);
+			}
+			if (!"GET".equals(request.getMethod())) {
+				finish.run();
+				return;
+			}
+			var out = response.getOutputStream();
+			out.setWriteListener(new TeeStreamer(tee, res.offset, out, ctx::start, (t) -> {
+				if (t != null) handleFailure(t, request, response);
+				finish.run();
+			}));
+		} catch (IOException e) {
+			handleFailure(e, request, response);
+			finish.run();
 		}
 	}
 
@@ -422,15 +639,19 @@ public final class JortLinkHandler extends HandlerWrapper {
 				response.sendError(res.status, res.message);
 			}
 		} else {
-			response.setContentLengthLong(Files.size(res.file));
+			response.setContentLengthLong(Files.size(res.file)-res.offset);
 			response.setStatus(res.status);
 			response.setHeader("Cache-Control", "public, max-age=86400");
 			response.setHeader("Content-Type", res.contentType);
-			if ("GET".equals(request.getMethod())) {
-				try (var in = Files.newInputStream(res.file)) {
-					ByteStreams.skipFully(in, res.offset);
-					in.transferTo(response.getOutputStream());
-				}
+			if (res.contentEncoding != null) {
+				response.setHeader("Content-Encoding", res.contentEncoding);
+			}
+			if ("GET".equals(request.getMethod()) && !copyVerified(res, response)) {
+				log.warn("Deleting corrupt cache file {}", res.file);
+				Files.deleteIfExists(res.file);
+				// the length is already out, so cutting the connection is the only way to say it's wrong
+				request.getHttpChannel().abort(new IOException("Cache file is corrupt"));
+				return;
 			}
 			try {
 				response.getOutputStream().close();
@@ -438,6 +659,31 @@ public final class JortLinkHandler extends HandlerWrapper {
 		}
 	}
 
+	/**
+	 * Copy a cache file's body out, checking it against its checksum as it goes. The last chunk is
+	 * held back until the checksum is known, so a corrupt body is never sent in full.
+	 * @return {@code false} if the body didn't match
+	 */
+	private boolean copyVerified(RequestResult res, HttpServletResponse response) throws IOException {
+		var out = response.getOutputStream();
+		var crc = new CRC32C();
+		try (var raw = Files.newInputStream(res.file)) {
+			ByteStreams.skipFully(raw, res.offset);
+			var in = new CheckedInputStream(raw, crc);
+			byte[] buf = new byte[16384];
+			long remaining = Files.size(res.file)-res.offset;
+			while (remaining > 0) {
+				int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+				if (n == -1) return false;
+				remaining -= n;
+				// legacy files have no checksum to check
+				if (remaining == 0 && res.bodyChecksum != null && (int)crc.getValue() != res.bodyChecksum) return false;
+				out.write(buf, 0, n);
+			}
+		}
+		return true;
+	}
+
 	private void sendRedirect(HttpServletResponse response, int status, String target) throws IOException {
 		response.setStatus(status);
 		response.setHeader("Location", target);
@@ -24,6 +24,7 @@ public class OuterHandler extends HandlerWrapper {
 		res.setHeader("Powered-By", "jort.link/"+JortLink.VERSION+" Jetty/"+Jetty.VERSION+" Java/"+JAVA_VERSION);
 		res.setHeader("Clacks-Overhead", "GNU Natalie Nguyen, Amelia Rose");
 		res.setHeader("Jeans-Teleshorted", Integer.toString((int)(Math.random()*200000)+70));
+		JortLink.connStats.request(baseRequest.getHttpVersion());
 		super.handle(target, baseRequest, req, res);
 	}
 	
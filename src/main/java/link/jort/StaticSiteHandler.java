@@ -0,0 +1,295 @@
+package link.jort;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.hash.Hashing;
+
+import blue.endless.jankson.JsonObject;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the static site out of memory. Files are loaded at startup along with gzip variants, which
+ * are generated for anything compressible; hand-made {@code .gz} and {@code .br} siblings are used
+ * as-is. The directory is watched and reloaded on change. Files that are too large to hold, or that
+ * appeared since the last reload, are streamed from disk instead.
+ */
+public final class StaticSiteHandler extends AbstractHandler {
+	private static final Logger log = LoggerFactory.getLogger(StaticSiteHandler.class);
+
+	private static final String CACHE_CONTROL = "public, max-age=86400";
+	private static final Splitter COMMA_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+	record Entry(String contentType, long lastModified, String etag, ByteBuffer identity,
+			@Nullable ByteBuffer gzip, @Nullable ByteBuffer br) {}
+
+	private final Path root;
+	private final long maxFileSize;
+	private final long maxTotalSize;
+	private final MimeTypes mimeTypes = new MimeTypes();
+
+	private volatile Map<String, Entry> entries = Map.of();
+	private WatchService watcher;
+
+	public StaticSiteHandler(Path root, long maxFileSize, long maxTotalSize) {
+		this.root = root.toAbsolutePath().normalize();
+		this.maxFileSize = maxFileSize;
+		this.maxTotalSize = maxTotalSize;
+	}
+
+	public static StaticSiteHandler fromConfig(Path root, JsonObject obj) {
+		if (obj == null) obj = new JsonObject();
+		return new StaticSiteHandler(root, obj.getLong("maxFileSize", 1024*1024), obj.getLong("maxTotalSize", 32*1024*1024));
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		super.doStart();
+		watcher = root.getFileSystem().newWatchService();
+		reload();
+		var t = new Thread(this::watch, "jort.link site watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		watcher.close();
+		super.doStop();
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				var key = watcher.take();
+				// let a burst of changes (such as a deploy) settle before reloading
+				do {
+					key.pollEvents();
+					key.reset();
+				} while ((key = watcher.poll(250, TimeUnit.MILLISECONDS)) != null);
+				reload();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+		}
+	}
+
+	private void reload() {
+		var map = new HashMap<String, Entry>();
+		long[] total = {0};
+		try {
+			// files vanishing mid-walk is normal (such as certbot cleaning up its challenges), so
+			// failures only skip the file in question; anything skipped is served from disk
+			Files.walkFileTree(root, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					try {
+						dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+								StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+					} catch (IOException e) {
+						log.warn("Failed to watch {} for changes", dir, e);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+					String name = path.getFileName().toString();
+					if (name.endsWith(".gz") || name.endsWith(".br")) return FileVisitResult.CONTINUE;
+					long size = attrs.size();
+					if (size > maxFileSize || total[0]+size > maxTotalSize) return FileVisitResult.CONTINUE;
+					try {
+						var e = load(path);
+						total[0] += e.identity.remaining()
+								+(e.gzip == null ? 0 : e.gzip.remaining())
+								+(e.br == null ? 0 : e.br.remaining());
+						map.put(key(path), e);
+					} catch (IOException e) {
+						log.debug("Skipping site file {}", path, e);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e) {
+					log.debug("Skipping site file {}", path, e);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			log.warn("Failed to load site from {}", root, e);
+			return;
+		}
+		entries = Map.copyOf(map);
+		log.debug("Loaded {} site file{} ({} bytes)", map.size(), map.size() == 1 ? "" : "s", total[0]);
+	}
+
+	private String key(Path path) {
+		var sb = new StringBuilder();
+		for (var p : root.relativize(path)) {
+			sb.append('/').append(p);
+		}
+		return sb.toString();
+	}
+
+	private Entry load(Path path) throws IOException {
+		String name = path.getFileName().toString();
+		byte[] data = Files.readAllBytes(path);
+		String type = mimeTypes.getMimeByExtension(name);
+		if (type == null) type = "application/octet-stream";
+		if (type.startsWith("text/") && !type.contains("charset")) type += "; charset=utf-8";
+		String etag = Hashing.sha256().hashBytes(data).toString().substring(0, 24);
+		var gz = path.resolveSibling(name+".gz");
+		var br = path.resolveSibling(name+".br");
+		byte[] gzData = null;
+		if (Files.isRegularFile(gz)) {
+			gzData = Files.readAllBytes(gz);
+		} else if (isCompressible(type) && data.length > 256) {
+			var baos = new ByteArrayOutputStream();
+			try (var out = new GZIPOutputStream(baos)) {
+				out.write(data);
+			}
+			// not worth the CPU on the client if it barely helps
+			if (baos.size() < data.length*0.9) gzData = baos.toByteArray();
+		}
+		byte[] brData = Files.isRegularFile(br) ? Files.readAllBytes(br) : null;
+		return new Entry(type, Files.getLastModifiedTime(path).toMillis(), etag, buffer(data), buffer(gzData), buffer(brData));
+	}
+
+	private static ByteBuffer buffer(byte[] data) {
+		if (data == null) return null;
+		var buf = ByteBuffer.allocateDirect(data.length);
+		buf.put(data).flip();
+		return buf.asReadOnlyBuffer();
+	}
+
+	private static boolean isCompressible(String type) {
+		return type.startsWith("text/") || type.startsWith("application/javascript")
+				|| type.startsWith("application/json") || type.startsWith("application/xml")
+				|| type.startsWith("image/svg+xml") || type.startsWith("application/wasm");
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+		baseRequest.setHandled(true);
+		var map = entries;
+		var e = map.get(target.endsWith("/") ? target+"index.html" : target);
+		if (e == null) {
+			if (!target.endsWith("/") && map.containsKey(target+"/index.html")) {
+				response.setStatus(302);
+				response.setHeader("Location", target+"/"+(request.getQueryString() == null ? "" : "?"+request.getQueryString()));
+				response.getOutputStream().close();
+				return;
+			}
+			serveFromDisk(target, baseRequest, response);
+			return;
+		}
+		ByteBuffer body = e.identity;
+		String encoding = null;
+		String etag = e.etag;
+		String accept = request.getHeader("Accept-Encoding");
+		if (accept != null) {
+			if (e.br != null && accepts(accept, "br")) {
+				body = e.br;
+				encoding = "br";
+			} else if (e.gzip != null && accepts(accept, "gzip")) {
+				body = e.gzip;
+				encoding = "gzip";
+			}
+		}
+		if (encoding != null) etag += "-"+encoding;
+		etag = "\""+etag+"\"";
+		if (e.gzip != null || e.br != null) {
+			response.addHeader("Vary", "Accept-Encoding");
+		}
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", CACHE_CONTROL);
+		response.setDateHeader("Last-Modified", e.lastModified);
+		if (notModified(request, etag, e.lastModified)) {
+			response.setStatus(304);
+			response.getOutputStream().close();
+			return;
+		}
+		response.setStatus(200);
+		response.setContentType(e.contentType);
+		if (encoding != null) response.setHeader("Content-Encoding", encoding);
+		response.setContentLengthLong(body.remaining());
+		if ("GET".equals(request.getMethod())) {
+			baseRequest.getResponse().getHttpOutput().sendContent(body.slice());
+		} else {
+			response.getOutputStream().close();
+		}
+	}
+
+	/**
+	 * Serve files we don't have in memory, such as ones that are too big, or ACME challenges
+	 * written since the last reload.
+	 */
+	private void serveFromDisk(String target, Request baseRequest, HttpServletResponse response) throws IOException {
+		var path = root.resolve(target.substring(1)).normalize();
+		if (Files.isDirectory(path)) path = path.resolve("index.html");
+		if (!path.startsWith(root) || !Files.isRegularFile(path)) {
+			response.sendError(404);
+			return;
+		}
+		String type = mimeTypes.getMimeByExtension(path.getFileName().toString());
+		response.setStatus(200);
+		response.setContentType(type == null ? "application/octet-stream" : type);
+		response.setHeader("Cache-Control", CACHE_CONTROL);
+		response.setDateHeader("Last-Modified", Files.getLastModifiedTime(path).toMillis());
+		response.setContentLengthLong(Files.size(path));
+		if ("GET".equals(baseRequest.getMethod())) {
+			try (var in = Files.newInputStream(path)) {
+				in.transferTo(response.getOutputStream());
+			}
+		}
+		response.getOutputStream().close();
+	}
+
+	private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+		String inm = request.getHeader("If-None-Match");
+		if (inm != null) {
+			for (var tag : COMMA_SPLITTER.split(inm)) {
+				if (tag.equals("*") || tag.equals(etag) || tag.equals("W/"+etag)) return true;
+			}
+			return false;
+		}
+		long ims = request.getDateHeader("If-Modified-Since");
+		return ims != -1 && lastModified/1000 <= ims/1000;
+	}
+
+	private static boolean accepts(String header, String coding) {
+		for (var part : COMMA_SPLITTER.split(header)) {
+			int semi = part.indexOf(';');
+			String name = semi == -1 ? part : part.substring(0, semi).trim();
+			if (!name.equalsIgnoreCase(coding)) continue;
+			// an explicit q=0 means "anything but this"
+			return semi == -1 || !part.substring(semi+1).replace(" ", "").matches("q=0(\\.0*)?");
+		}
+		return false;
+	}
+
+}
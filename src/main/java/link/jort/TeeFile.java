@@ -0,0 +1,108 @@
+package link.jort;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cache file that is still being written. Readers follow the writer through the temporary file
+ * and are called back as each chunk lands on disk, rather than blocking a thread while they wait;
+ * once the file is committed, new readers open it at its final location instead.
+ */
+public final class TeeFile {
+
+	private final Path tmpFile;
+	private long length = -1;
+
+	private Path file;
+	private long written;
+	private boolean done;
+	private IOException failure;
+	private List<Runnable> callbacks = new ArrayList<>();
+
+	public TeeFile(Path tmpFile) {
+		this.tmpFile = tmpFile;
+	}
+
+	/**
+	 * @return the expected length of the body, if the upstream told us, or -1
+	 */
+	public long length() {
+		return length;
+	}
+
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	public void advance(long written) {
+		List<Runnable> cbs;
+		synchronized (this) {
+			this.written = written;
+			cbs = takeCallbacks();
+		}
+		cbs.forEach(Runnable::run);
+	}
+
+	public void commit(Path dest) throws IOException {
+		List<Runnable> cbs;
+		synchronized (this) {
+			// the destination may exist if we are re-retrieving after expiring a cache entry
+			Files.move(tmpFile, dest, StandardCopyOption.REPLACE_EXISTING);
+			file = dest;
+			done = true;
+			cbs = takeCallbacks();
+		}
+		cbs.forEach(Runnable::run);
+	}
+
+	/**
+	 * Mark this file as failed, if it wasn't already committed. Readers that are still following
+	 * it will receive an exception.
+	 */
+	public void abort(IOException cause) {
+		List<Runnable> cbs;
+		synchronized (this) {
+			if (done) return;
+			failure = cause;
+			done = true;
+			cbs = takeCallbacks();
+		}
+		cbs.forEach(Runnable::run);
+	}
+
+	private List<Runnable> takeCallbacks() {
+		// callbacks are run outside the lock, as they may well call straight back into us
+		if (callbacks.isEmpty()) return List.of();
+		var cbs = callbacks;
+		callbacks = new ArrayList<>();
+		return cbs;
+	}
+
+	public synchronized FileChannel open() throws IOException {
+		checkFailure();
+		return FileChannel.open(file == null ? tmpFile : file);
+	}
+
+	/**
+	 * Check whether more than {@code pos} bytes have been written, or the file is complete. If
+	 * neither, the callback is registered to be run once, the next time either may have changed.
+	 * @return the number of bytes written so far; equal to {@code pos} at the end of the file, or -1
+	 * 		if the callback was registered
+	 */
+	public synchronized long poll(long pos, Runnable callback) throws IOException {
+		checkFailure();
+		if (written > pos || done) return written;
+		callbacks.add(callback);
+		return -1;
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) throw new IOException("Upstream request failed", failure);
+	}
+
+}
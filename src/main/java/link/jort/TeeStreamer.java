@@ -0,0 +1,85 @@
+package link.jort;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * Copies a {@link TeeFile} out to an async response as it's written. Nothing blocks while waiting
+ * on either side: the container calls back when the client can take more, and the tee calls back
+ * when more has been written, so a storm of waiters on one slow download doesn't hold a thread each.
+ */
+public final class TeeStreamer implements WriteListener {
+
+	private final TeeFile tee;
+	private final ServletOutputStream out;
+	private final Executor executor;
+	private final Consumer<Throwable> onDone;
+	private final byte[] buf = new byte[16384];
+
+	private FileChannel in;
+	private long pos;
+	private boolean finished;
+
+	/**
+	 * @param pos where in the file to start copying from
+	 * @param executor where to resume copying when the tee has more, so its writer isn't held up
+	 * @param onDone called once, with {@code null} if everything was copied or the failure if not
+	 */
+	public TeeStreamer(TeeFile tee, long pos, ServletOutputStream out, Executor executor, Consumer<Throwable> onDone) {
+		this.tee = tee;
+		this.pos = pos;
+		this.out = out;
+		this.executor = executor;
+		this.onDone = onDone;
+	}
+
+	@Override
+	public void onWritePossible() {
+		pump();
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		finish(t);
+	}
+
+	private synchronized void pump() {
+		if (finished) return;
+		try {
+			if (in == null) in = tee.open();
+			// once isReady returns false, the container will call onWritePossible when it's ready
+			while (out.isReady()) {
+				long avail = tee.poll(pos, () -> executor.execute(this::pump));
+				if (avail == -1) return;
+				if (avail == pos) {
+					finish(null);
+					return;
+				}
+				int n = in.read(ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, avail-pos)), pos);
+				if (n == -1) throw new IOException("Cache file is shorter than it claims");
+				pos += n;
+				out.write(buf, 0, n);
+			}
+		} catch (IOException | RuntimeException e) {
+			finish(e);
+		}
+	}
+
+	private synchronized void finish(Throwable t) {
+		if (finished) return;
+		finished = true;
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {}
+		}
+		onDone.accept(t);
+	}
+
+}
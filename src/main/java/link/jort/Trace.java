@@ -0,0 +1,98 @@
+package link.jort;
+
+/**
+ * Lap timings for a single request or upstream fetch. Not thread-safe; a trace must only be touched
+ * by one thread at a time.
+ */
+public final class Trace {
+
+	public enum Phase {
+		/** A whole proxied request, from address lookup to the last byte sent. */
+		REQUEST,
+		DNS,
+		/** Reading an existing cache file's header. */
+		DISK,
+		/** Waiting for our own or another request's fetch to produce a result. */
+		WAIT,
+		/** Copying the result out to the client. */
+		RESPOND,
+
+		/** A whole upstream fetch, from admission to the cache file being committed. */
+		FETCH,
+		/** Waiting for the admission controller to give us a slot. */
+		QUEUE,
+		/** Connecting to the upstream and waiting for its response headers. */
+		UPSTREAM,
+		BODY,
+		/** Parsing and rewriting HTML, including reading the body it's parsed from. */
+		PARSE,
+		/** Decoding, scaling and re-encoding an image. */
+		IMAGE,
+		WRITE,
+		;
+		public static final Phase[] VALUES = values();
+	}
+
+	private final Phase total;
+	private final String subject;
+	private final long start;
+	private long last;
+	private final long[] nanos = new long[Phase.VALUES.length];
+	private int touched;
+	private String outcome = "";
+
+	public Trace(Phase total, String subject) {
+		this.total = total;
+		this.subject = subject;
+		this.start = this.last = System.nanoTime();
+	}
+
+	/**
+	 * Attribute the time since the last lap to the given phase.
+	 */
+	public void lap(Phase phase) {
+		long now = System.nanoTime();
+		add(phase, now-last);
+		last = now;
+	}
+
+	public void add(Phase phase, long nanos) {
+		this.nanos[phase.ordinal()] += nanos;
+		touched |= 1 << phase.ordinal();
+	}
+
+	public void setOutcome(String outcome) {
+		this.outcome = outcome;
+	}
+
+	void end() {
+		nanos[total.ordinal()] = System.nanoTime()-start;
+		touched |= 1 << total.ordinal();
+	}
+
+	public Phase total() {
+		return total;
+	}
+
+	public long nanos(Phase phase) {
+		return nanos[phase.ordinal()];
+	}
+
+	public boolean touched(Phase phase) {
+		return (touched & (1 << phase.ordinal())) != 0;
+	}
+
+	@Override
+	public String toString() {
+		var sb = new StringBuilder();
+		sb.append(total.name().toLowerCase()).append(' ').append(subject);
+		if (!outcome.isEmpty()) sb.append(" (").append(outcome).append(')');
+		for (var p : Phase.VALUES) {
+			if (!touched(p)) continue;
+			sb.append(' ').append(p.name().toLowerCase()).append('=');
+			sb.append(nanos[p.ordinal()]/1000/1000D).append("ms");
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,200 @@
+package link.jort;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import link.jort.Trace.Phase;
+
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+
+/**
+ * Collects finished {@link Trace traces} into rolling per-phase summaries, and writes sampled and
+ * slow traces out to the trace log on a background thread.
+ */
+public final class Tracer {
+	private static final Logger log = LoggerFactory.getLogger("link.jort.trace");
+
+	private static final int MINUTES = 15;
+	private static final int HISTOGRAM_BUCKETS = 40;
+
+	private final double sampleRate;
+	private final long slowNanos;
+	private final @Nullable Path logFile;
+
+	private final BlockingQueue<String> pending = new ArrayBlockingQueue<>(1024);
+	private final Minute[] minutes = new Minute[MINUTES];
+	private long dropped;
+
+	private static final class Minute {
+		long id = -1;
+		final long[] count = new long[Phase.VALUES.length];
+		final long[] sum = new long[Phase.VALUES.length];
+		final long[] max = new long[Phase.VALUES.length];
+		// log2 histogram of microseconds
+		final long[][] histogram = new long[Phase.VALUES.length][HISTOGRAM_BUCKETS];
+
+		void reset(long id) {
+			this.id = id;
+			for (int i = 0; i < count.length; i++) {
+				count[i] = sum[i] = max[i] = 0;
+				Arrays.fill(histogram[i], 0);
+			}
+		}
+	}
+
+	public Tracer(double sampleRate, long slowMillis, @Nullable Path logFile) {
+		this.sampleRate = sampleRate;
+		this.slowNanos = slowMillis*1_000_000L;
+		this.logFile = logFile;
+		for (int i = 0; i < MINUTES; i++) {
+			minutes[i] = new Minute();
+		}
+		var t = new Thread(this::drain, "jort.link trace log");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public static Tracer fromConfig(JsonObject obj) {
+		if (obj == null) obj = new JsonObject();
+		String file = obj.get(String.class, "log");
+		return new Tracer(obj.getDouble("sampleRate", 0.001), obj.getLong("slowThreshold", 5000),
+				file == null ? null : Path.of(file));
+	}
+
+	public void finish(Trace trace) {
+		trace.end();
+		long total = trace.nanos(trace.total());
+		long id = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+		var m = minutes[(int)(id % MINUTES)];
+		synchronized (m) {
+			if (m.id != id) m.reset(id);
+			for (var p : Phase.VALUES) {
+				if (!trace.touched(p)) continue;
+				int i = p.ordinal();
+				long n = trace.nanos(p);
+				m.count[i]++;
+				m.sum[i] += n;
+				m.max[i] = Math.max(m.max[i], n);
+				m.histogram[i][bucket(n)]++;
+			}
+		}
+		boolean slow = total >= slowNanos;
+		if (slow || ThreadLocalRandom.current().nextDouble() < sampleRate) {
+			if (!pending.offer((slow ? "slow " : "sampled ")+trace)) {
+				synchronized (this) {
+					dropped++;
+				}
+			}
+		}
+	}
+
+	private static int bucket(long nanos) {
+		long micros = nanos/1000;
+		return Math.min(HISTOGRAM_BUCKETS-1, 64-Long.numberOfLeadingZeros(micros));
+	}
+
+	private void drain() {
+		BufferedWriter w = null;
+		while (true) {
+			try {
+				String line = pending.take();
+				if (logFile == null) {
+					log.info(line);
+					continue;
+				}
+				if (w == null) {
+					w = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+				}
+				w.write(Instant.now().toString());
+				w.write(' ');
+				w.write(line);
+				w.newLine();
+				if (pending.isEmpty()) w.flush();
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				log.warn("Failed to write trace log", e);
+				w = null;
+			}
+		}
+	}
+
+	/**
+	 * Summarize the given number of most recent minutes, per phase.
+	 */
+	public JsonObject summary(int window) {
+		long now = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis());
+		long[] count = new long[Phase.VALUES.length];
+		long[] sum = new long[Phase.VALUES.length];
+		long[] max = new long[Phase.VALUES.length];
+		long[][] histogram = new long[Phase.VALUES.length][HISTOGRAM_BUCKETS];
+		for (var m : minutes) {
+			synchronized (m) {
+				if (m.id < 0 || now-m.id >= window) continue;
+				for (int i = 0; i < count.length; i++) {
+					count[i] += m.count[i];
+					sum[i] += m.sum[i];
+					max[i] = Math.max(max[i], m.max[i]);
+					for (int j = 0; j < HISTOGRAM_BUCKETS; j++) {
+						histogram[i][j] += m.histogram[i][j];
+					}
+				}
+			}
+		}
+		var obj = new JsonObject();
+		for (var p : Phase.VALUES) {
+			int i = p.ordinal();
+			if (count[i] == 0) continue;
+			var po = new JsonObject();
+			po.put("count", new JsonPrimitive(count[i]));
+			po.put("meanMs", new JsonPrimitive(sum[i]/count[i]/1000/1000D));
+			po.put("maxMs", new JsonPrimitive(max[i]/1000/1000D));
+			po.put("p50Ms", new JsonPrimitive(percentile(histogram[i], count[i], 0.5)));
+			po.put("p90Ms", new JsonPrimitive(percentile(histogram[i], count[i], 0.9)));
+			po.put("p99Ms", new JsonPrimitive(percentile(histogram[i], count[i], 0.99)));
+			obj.put(p.name().toLowerCase(), po);
+		}
+		return obj;
+	}
+
+	/**
+	 * @return the upper bound in milliseconds of the histogram bucket containing the given percentile
+	 */
+	private static double percentile(long[] histogram, long count, double pct) {
+		long target = (long)Math.ceil(count*pct);
+		long seen = 0;
+		for (int j = 0; j < histogram.length; j++) {
+			seen += histogram[j];
+			if (seen >= target) return (1L << j)/1000D;
+		}
+		return (1L << (histogram.length-1))/1000D;
+	}
+
+	public JsonObject stats() {
+		var obj = new JsonObject();
+		for (int w : new int[] {1, 5, MINUTES}) {
+			obj.put(w+"m", summary(w));
+		}
+		synchronized (this) {
+			obj.put("droppedLogLines", new JsonPrimitive(dropped));
+		}
+		return obj;
+	}
+
+}
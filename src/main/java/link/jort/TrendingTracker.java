@@ -0,0 +1,132 @@
+package link.jort;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+
+/**
+ * Streaming heavy-hitters tracker for cache keys. Request counts are estimated with a count-min
+ * sketch, and the keys with the highest estimates are kept in a small top-K set. Counts are halved
+ * periodically by {@link #decay}, so the set follows what's hot right now rather than what was hot
+ * this morning.
+ */
+public final class TrendingTracker {
+
+	private static final int DEPTH = 4;
+
+	private final int width;
+	private final int topK;
+	private final int minCount;
+	private final int halfLife;
+	private final AtomicIntegerArray counts;
+
+	private final Map<String, Entry> top = new ConcurrentHashMap<>();
+	private volatile int floor;
+
+	private static final class Entry {
+		final String uri;
+		volatile int count;
+
+		Entry(String uri, int count) {
+			this.uri = uri;
+			this.count = count;
+		}
+	}
+
+	public TrendingTracker(int width, int topK, int minCount, int halfLife) {
+		this.width = Integer.highestOneBit(Math.max(64, width));
+		this.topK = topK;
+		this.minCount = minCount;
+		this.halfLife = halfLife;
+		this.counts = new AtomicIntegerArray(DEPTH*this.width);
+	}
+
+	public static TrendingTracker fromConfig(JsonObject obj) {
+		if (obj == null) obj = new JsonObject();
+		return new TrendingTracker(obj.getInt("width", 4096), obj.getInt("topK", 64), obj.getInt("minCount", 8),
+				obj.getInt("halfLife", 60));
+	}
+
+	/**
+	 * @return how often, in seconds, {@link #decay} should be called
+	 */
+	public int halfLife() {
+		return halfLife;
+	}
+
+	/**
+	 * Count a request for the given key.
+	 * @param hash the hex SHA-256 cache key
+	 * @param uri the URI the key was derived from, for display
+	 * @return {@code true} if the key is currently trending
+	 */
+	public boolean record(String hash, String uri) {
+		// the key is already a good hash; split it in two for double hashing
+		long h1 = Long.parseUnsignedLong(hash, 0, 16, 16);
+		long h2 = Long.parseUnsignedLong(hash, 16, 32, 16);
+		int est = Integer.MAX_VALUE;
+		for (int i = 0; i < DEPTH; i++) {
+			int idx = (i*width)+(int)((h1+(i*h2)) & (width-1));
+			est = Math.min(est, counts.incrementAndGet(idx));
+		}
+		var e = top.get(hash);
+		if (e != null) {
+			e.count = est;
+			return true;
+		}
+		if (est < minCount || (top.size() >= topK && est <= floor)) return false;
+		synchronized (this) {
+			if (top.containsKey(hash)) return true;
+			if (top.size() >= topK) {
+				var min = top.entrySet().stream()
+						.min(Comparator.comparingInt(en -> en.getValue().count))
+						.get();
+				if (min.getValue().count >= est) return false;
+				top.remove(min.getKey());
+			}
+			top.put(hash, new Entry(uri, est));
+			updateFloor();
+		}
+		return true;
+	}
+
+	public boolean isTrending(String hash) {
+		return top.containsKey(hash);
+	}
+
+	/**
+	 * Halve all counts, dropping keys from the top set that fall below the minimum.
+	 */
+	public synchronized void decay() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, counts.get(i) >> 1);
+		}
+		top.values().removeIf(e -> (e.count >>= 1) < minCount);
+		updateFloor();
+	}
+
+	private void updateFloor() {
+		floor = top.size() < topK ? 0 : top.values().stream().mapToInt(e -> e.count).min().orElse(0);
+	}
+
+	public JsonArray stats() {
+		var list = new ArrayList<>(top.entrySet());
+		list.sort(Comparator.comparingInt(en -> -en.getValue().count));
+		var arr = new JsonArray();
+		for (var en : list) {
+			var obj = new JsonObject();
+			obj.put("uri", new JsonPrimitive(en.getValue().uri));
+			obj.put("key", new JsonPrimitive(en.getKey()));
+			obj.put("estimate", new JsonPrimitive(en.getValue().count));
+			arr.add(obj);
+		}
+		return arr;
+	}
+
+}
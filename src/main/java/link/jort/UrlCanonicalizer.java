@@ -0,0 +1,152 @@
+package link.jort;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+import blue.endless.jankson.JsonArray;
+import blue.endless.jankson.JsonElement;
+import blue.endless.jankson.JsonObject;
+import blue.endless.jankson.JsonPrimitive;
+
+/**
+ * Rewrites target URLs into a canonical form before they're hashed into cache keys, so trivially
+ * different links to the same page share one fetch and one cache file. Tracking parameters are
+ * stripped, the query is optionally sorted, the scheme and host are lowercased, default ports and
+ * fragments are dropped, and percent-encoding is normalized.
+ */
+public final class UrlCanonicalizer {
+
+	private static final Splitter AMP_SPLITTER = Splitter.on('&').omitEmptyStrings();
+
+	private static final Set<String> DEFAULT_STRIP_PARAMS = ImmutableSet.of(
+			"fbclid", "gclid", "dclid", "gbraid", "wbraid", "msclkid", "twclid", "ttclid", "yclid",
+			"igshid", "mc_cid", "mc_eid", "_hsenc", "_hsmi", "mkt_tok", "vero_id", "oly_anon_id",
+			"oly_enc_id", "rb_clickid", "s_cid", "wickedid");
+	private static final Set<String> DEFAULT_STRIP_PREFIXES = ImmutableSet.of("utm_");
+
+	private final Set<String> stripParams;
+	private final Set<String> stripPrefixes;
+	private final boolean sortQuery;
+
+	public UrlCanonicalizer(Set<String> stripParams, Set<String> stripPrefixes, boolean sortQuery) {
+		this.stripParams = stripParams;
+		this.stripPrefixes = stripPrefixes;
+		this.sortQuery = sortQuery;
+	}
+
+	public static UrlCanonicalizer fromConfig(JsonObject obj) {
+		if (obj == null) obj = new JsonObject();
+		return new UrlCanonicalizer(strings(obj.get(JsonArray.class, "stripParams"), DEFAULT_STRIP_PARAMS),
+				strings(obj.get(JsonArray.class, "stripPrefixes"), DEFAULT_STRIP_PREFIXES),
+				obj.getBoolean("sortQuery", true));
+	}
+
+	private static Set<String> strings(JsonArray arr, Set<String> def) {
+		if (arr == null) return def;
+		var b = ImmutableSet.<String>builder();
+		for (JsonElement ele : arr) {
+			if (ele instanceof JsonPrimitive jp) b.add(Ascii.toLowerCase(jp.asString()));
+		}
+		return b.build();
+	}
+
+	/**
+	 * @param uri an absolute http or https URI
+	 * @return the canonical form of the URI
+	 */
+	public String canonicalize(String uri) {
+		int hash = uri.indexOf('#');
+		if (hash != -1) uri = uri.substring(0, hash);
+		int schemeEnd = uri.indexOf("://");
+		if (schemeEnd == -1) return uri;
+		String scheme = Ascii.toLowerCase(uri.substring(0, schemeEnd));
+		int authStart = schemeEnd+3;
+		int pathStart = indexOfAny(uri, "/?", authStart);
+		String authority = Ascii.toLowerCase(uri.substring(authStart, pathStart));
+		if (("https".equals(scheme) && authority.endsWith(":443")) || ("http".equals(scheme) && authority.endsWith(":80"))) {
+			authority = authority.substring(0, authority.lastIndexOf(':'));
+		}
+		int queryStart = uri.indexOf('?', pathStart);
+		String path = normalizeEscapes(uri.substring(pathStart, queryStart == -1 ? uri.length() : queryStart));
+		if (path.isEmpty()) path = "/";
+		var sb = new StringBuilder(uri.length());
+		sb.append(scheme).append("://").append(authority).append(path);
+		if (queryStart != -1) {
+			List<String> params = new ArrayList<>();
+			for (var param : AMP_SPLITTER.split(uri.substring(queryStart+1))) {
+				param = normalizeEscapes(param);
+				if (!isStripped(name(param))) params.add(param);
+			}
+			if (sortQuery) {
+				// stable, so repeated parameters keep their relative order
+				params.sort(Comparator.comparing(UrlCanonicalizer::name));
+			}
+			if (!params.isEmpty()) {
+				sb.append('?');
+				sb.append(String.join("&", params));
+			}
+		}
+		return sb.toString();
+	}
+
+	private boolean isStripped(String name) {
+		name = Ascii.toLowerCase(name);
+		if (stripParams.contains(name)) return true;
+		for (var prefix : stripPrefixes) {
+			if (name.startsWith(prefix)) return true;
+		}
+		return false;
+	}
+
+	private static String name(String param) {
+		int eq = param.indexOf('=');
+		return eq == -1 ? param : param.substring(0, eq);
+	}
+
+	private static int indexOfAny(String str, String chars, int from) {
+		for (int i = from; i < str.length(); i++) {
+			if (chars.indexOf(str.charAt(i)) != -1) return i;
+		}
+		return str.length();
+	}
+
+	/**
+	 * Decode percent-escapes of unreserved characters, and uppercase the hex digits of the rest, as
+	 * per RFC 3986 section 6.2.2.
+	 */
+	private static String normalizeEscapes(String str) {
+		if (str.indexOf('%') == -1) return str;
+		var sb = new StringBuilder(str.length());
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '%' && i+2 < str.length() && isHex(str.charAt(i+1)) && isHex(str.charAt(i+2))) {
+				char decoded = (char)Integer.parseInt(str, i+1, i+3, 16);
+				if (isUnreserved(decoded)) {
+					sb.append(decoded);
+				} else {
+					sb.append('%').append(Ascii.toUpperCase(str.charAt(i+1))).append(Ascii.toUpperCase(str.charAt(i+2)));
+				}
+				i += 2;
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static boolean isHex(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+
+	private static boolean isUnreserved(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '-' || c == '.' || c == '_' || c == '~';
+	}
+
+}
@@ -0,0 +1,47 @@
+package link.jort.tools;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Produces an AppCDS archive for a jort.link jar by running it against a {@link StandInOrigin} and
+ * exercising the paths a real deployment hits early on, then shutting it down so the JVM dumps
+ * every class it loaded.
+ * <p>
+ * Usage: {@code CdsTraining <jar> <archive> <work dir>}
+ */
+public final class CdsTraining {
+
+	public static void main(String[] args) throws Exception {
+		var jar = Path.of(args[0]).toAbsolutePath();
+		var archive = Path.of(args[1]).toAbsolutePath();
+		Files.deleteIfExists(archive);
+		try (var h = Harness.prepare(Path.of(args[2]))) {
+			h.reset();
+			h.launch(jar, List.of("-XX:ArchiveClassesAtExit="+archive));
+			h.awaitReady(Duration.ofMinutes(1));
+			for (int i = 0; i < 3; i++) {
+				// the site, and things that fall through to it
+				h.get(Harness.FRONT, "/", Harness.BROWSER_UA);
+				h.get(Harness.FRONT, "/.well-known/acme-challenge/nope", Harness.BROWSER_UA);
+				// humans get redirected
+				h.get(Harness.FRONT, "/"+StandInOrigin.HOST+"/page", Harness.BROWSER_UA);
+				h.get(Harness.FRONT, "/github.com/jortage/jort.link", Harness.FEDI_UA);
+				h.get(Harness.EXCLUDE, "/"+StandInOrigin.HOST+"/page", Harness.FEDI_UA);
+				// fedi software gets the proxied page; a miss, a hit and a canonicalized hit
+				h.get(Harness.INSECURE, "/"+StandInOrigin.HOST+"/page?n="+i, Harness.FEDI_UA);
+				h.get(Harness.INSECURE, "/"+StandInOrigin.HOST+"/page?n="+i, Harness.FEDI_UA);
+				h.get(Harness.INSECURE, "/"+StandInOrigin.HOST+"/page?utm_source=mastodon&n="+i, Harness.FEDI_UA);
+				h.get(Harness.INSECURE, "/"+StandInOrigin.HOST+"/image.png?n="+i, Harness.FEDI_UA);
+			}
+			h.stop();
+		}
+		if (!Files.exists(archive)) {
+			throw new IllegalStateException("The JVM didn't write "+archive+"; is this a JDK with CDS support?");
+		}
+		System.out.println("Wrote "+archive+" ("+Files.size(archive)/1024+"K)");
+	}
+
+}
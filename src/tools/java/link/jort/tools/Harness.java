@@ -0,0 +1,162 @@
+package link.jort.tools;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+
+/**
+ * Runs a jort.link jar in a child process against a {@link StandInOrigin}, with a generated config
+ * and a hosts file mapping the configured domains, so nothing needs to be resolved for real.
+ * <p>
+ * {@link #prepare} must be called before anything touches {@link java.net.InetAddress}, as the
+ * hosts file is only picked up when the JDK's name service is first initialized.
+ */
+final class Harness implements AutoCloseable {
+
+	static final String FEDI_UA = "http.rb/5.1.0 (Mastodon/4.0.2; +https://jort.test/)";
+	static final String BROWSER_UA = "Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0";
+
+	static final String FRONT = "front.jort.test";
+	static final String INSECURE = "h.jort.test";
+	static final String EXCLUDE = "x.jort.test";
+
+	private final Path dir;
+	private final StandInOrigin origin = new StandInOrigin();
+	private final HttpClient http = HttpClient.newBuilder()
+			.connectTimeout(Duration.ofSeconds(5))
+			.build();
+	private int port;
+	private Process proc;
+
+	private Harness(Path dir) {
+		this.dir = dir;
+	}
+
+	static Harness prepare(Path dir) throws IOException {
+		Files.createDirectories(dir);
+		var hosts = dir.resolve("hosts");
+		Files.writeString(hosts, """
+				127.0.0.1 front.jort.test fedi.jort.test h.jort.test x.jort.test hx.jort.test
+				# any address that isn't local will do; the upstream proxy intercepts it anyway
+				192.0.2.10 origin.example.com
+				""");
+		System.setProperty("jdk.net.hosts.file", hosts.toString());
+		return new Harness(dir);
+	}
+
+	/**
+	 * Write a fresh config and cache directory, and start the stand-in origin if it isn't running.
+	 */
+	void reset() throws Exception {
+		if (port == 0) {
+			int originPort = origin.start();
+			try (var ss = new java.net.ServerSocket(0)) {
+				port = ss.getLocalPort();
+			}
+			var www = dir.resolve("www");
+			Files.createDirectories(www.resolve(".well-known"));
+			Files.writeString(www.resolve("index.html"), "<!DOCTYPE html><title>jort.link</title><p>"+"Super Denim Powers. ".repeat(64));
+			Files.writeString(dir.resolve("config.jkson"), """
+					bind: "127.0.0.1"
+					port: %1$d
+					cache: "%2$s"
+					files: "%3$s"
+					https: false
+					useCacheDomain: false
+					upstreamProxy: "127.0.0.1:%4$d"
+					hosts: {
+						front: "front.jort.test:%1$d"
+						cache: "fedi.jort.test:%1$d"
+						insecure: "h.jort.test:%1$d"
+						exclude: "x.jort.test:%1$d"
+						insecure_exclude: "hx.jort.test:%1$d"
+					}
+					ignoredHosts: ["github.com"]
+					uaPatterns: ["^http\\\\.rb/\\\\S+\\\\s\\\\(Mastodon"]
+					""".formatted(port, dir.resolve("cache"), www, originPort));
+		}
+		var cache = dir.resolve("cache");
+		if (Files.exists(cache)) {
+			MoreFiles.deleteRecursively(cache, RecursiveDeleteOption.ALLOW_INSECURE);
+		}
+	}
+
+	/**
+	 * Start the given jar, with the working directory set to the one it's in.
+	 */
+	void launch(Path jar, List<String> jvmArgs) throws IOException {
+		var cmd = new ArrayList<String>();
+		cmd.add(ProcessHandle.current().info().command().orElse("java"));
+		cmd.addAll(jvmArgs);
+		cmd.add("-Djdk.net.hosts.file="+dir.resolve("hosts"));
+		cmd.add("-jar");
+		cmd.add(jar.getFileName().toString());
+		cmd.add(dir.resolve("config.jkson").toString());
+		proc = new ProcessBuilder(cmd)
+				.directory(jar.toAbsolutePath().getParent().toFile())
+				.redirectErrorStream(true)
+				.redirectOutput(dir.resolve("server.log").toFile())
+				.start();
+	}
+
+	/**
+	 * Poll the front page until it's served.
+	 * @return the time it was first served, as per {@link System#nanoTime}
+	 */
+	long awaitReady(Duration timeout) throws Exception {
+		long deadline = System.nanoTime()+timeout.toNanos();
+		while (System.nanoTime() < deadline) {
+			if (!proc.isAlive()) throw new IllegalStateException("jort.link exited early; see "+dir.resolve("server.log"));
+			try {
+				if (get(FRONT, "/", BROWSER_UA).statusCode() == 200) return System.nanoTime();
+			} catch (IOException e) {
+				// not listening yet
+			}
+			Thread.sleep(2);
+		}
+		throw new IllegalStateException("jort.link didn't come up within "+timeout);
+	}
+
+	HttpResponse<byte[]> get(String host, String path, String ua) throws IOException, InterruptedException {
+		return http.send(HttpRequest.newBuilder(URI.create("http://"+host+":"+port+path))
+				.header("User-Agent", ua)
+				.header("Accept-Encoding", "gzip")
+				.timeout(Duration.ofSeconds(30))
+				.build(), BodyHandlers.ofByteArray());
+	}
+
+	/**
+	 * Ask the child process to shut down, as a service manager would.
+	 */
+	void stop() throws InterruptedException {
+		if (proc == null) return;
+		proc.destroy();
+		if (!proc.waitFor(30, TimeUnit.SECONDS)) {
+			proc.destroyForcibly().waitFor();
+			throw new IllegalStateException("jort.link didn't stop within 30 seconds");
+		}
+		proc = null;
+	}
+
+	@Override
+	public void close() throws Exception {
+		try {
+			if (proc != null) proc.destroyForcibly().waitFor();
+		} finally {
+			origin.stop();
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+package link.jort.tools;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * A fake upstream for training and benchmark runs. The jort.link under test reaches it by way of
+ * its {@code upstreamProxy} setting, so every request for {@link #HOST} ends up here regardless of
+ * what that name resolves to.
+ */
+final class StandInOrigin extends AbstractHandler {
+
+	static final String HOST = "origin.example.com";
+
+	private static final String PAGE = """
+			<!DOCTYPE html>
+			<html>
+			<head>
+			<meta charset="utf-8">
+			<title>A very popular page</title>
+			<meta property="og:title" content="A very popular page">
+			<meta property="og:url" content="http://origin.example.com/page">
+			<meta property="og:image" content="http://origin.example.com/image.png">
+			<link rel="stylesheet" href="/style.css">
+			<style>body { color: red; }</style>
+			<script>console.log("hi");</script>
+			</head>
+			<body style="margin: 0">
+			<svg width="10" height="10"></svg>
+			<img src="http://origin.example.com/image.png">
+			<p>Linked on the Fediverse, and about to regret it.</p>
+			</body>
+			</html>
+			""";
+
+	private final Server server = new Server(new InetSocketAddress("127.0.0.1", 0));
+	private final byte[] page = PAGE.getBytes(StandardCharsets.UTF_8);
+	private final byte[] image;
+
+	StandInOrigin() {
+		var img = new BufferedImage(1200, 630, BufferedImage.TYPE_INT_RGB);
+		var g = img.createGraphics();
+		g.setPaint(new GradientPaint(0, 0, Color.BLUE, 1200, 630, Color.ORANGE));
+		g.fillRect(0, 0, 1200, 630);
+		g.dispose();
+		var baos = new ByteArrayOutputStream();
+		try {
+			ImageIO.write(img, "png", baos);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		image = baos.toByteArray();
+		server.setHandler(this);
+	}
+
+	int start() throws Exception {
+		server.start();
+		return ((ServerConnector)server.getConnectors()[0]).getLocalPort();
+	}
+
+	void stop() throws Exception {
+		server.stop();
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		baseRequest.setHandled(true);
+		byte[] body;
+		if (target.endsWith(".png")) {
+			response.setContentType("image/png");
+			body = image;
+		} else {
+			response.setContentType("text/html; charset=utf-8");
+			body = page;
+		}
+		response.setStatus(200);
+		response.setHeader("ETag", "\"stand-in\"");
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+}
@@ -0,0 +1,60 @@
+package link.jort.tools;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures how long a jort.link jar takes to serve its first request after being launched, and
+ * how long the first proxied request takes after that, with and without an AppCDS archive.
+ * <p>
+ * Usage: {@code StartupBenchmark <jar> <archive> <work dir> [runs]}
+ */
+public final class StartupBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		var jar = Path.of(args[0]).toAbsolutePath();
+		var archive = Path.of(args[1]).toAbsolutePath();
+		int runs = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		try (var h = Harness.prepare(Path.of(args[2]))) {
+			run(h, jar, "default", List.of(), runs);
+			if (Files.exists(archive)) {
+				run(h, jar, "appcds", List.of("-XX:SharedArchiveFile="+archive), runs);
+			} else {
+				System.out.println("No archive at "+archive+"; skipping the AppCDS runs");
+			}
+		}
+	}
+
+	private static void run(Harness h, Path jar, String name, List<String> jvmArgs, int runs) throws Exception {
+		double[] ready = new double[runs];
+		double[] first = new double[runs];
+		for (int i = 0; i < runs; i++) {
+			h.reset();
+			long start = System.nanoTime();
+			h.launch(jar, jvmArgs);
+			long up = h.awaitReady(Duration.ofMinutes(1));
+			long reqStart = System.nanoTime();
+			var res = h.get(Harness.INSECURE, "/"+StandInOrigin.HOST+"/page", Harness.FEDI_UA);
+			long reqEnd = System.nanoTime();
+			if (res.statusCode() != 203) {
+				throw new IllegalStateException("Expected a 203 for the proxied page, got "+res.statusCode());
+			}
+			h.stop();
+			ready[i] = (up-start)/1_000_000D;
+			first[i] = (reqEnd-reqStart)/1_000_000D;
+			System.out.printf("%-8s run %d: first served after %7.1fms, first proxied request took %7.1fms%n", name, i+1, ready[i], first[i]);
+		}
+		System.out.printf("%-8s median: first served after %7.1fms, first proxied request took %7.1fms%n", name, median(ready), median(first));
+	}
+
+	private static double median(double[] values) {
+		var sorted = values.clone();
+		Arrays.sort(sorted);
+		int mid = sorted.length/2;
+		return sorted.length % 2 == 0 ? (sorted[mid-1]+sorted[mid])/2 : sorted[mid];
+	}
+
+}